@@ -4,6 +4,12 @@ class StaticSettings {
     companion object {
         const val BASE_FOLDER_NAME = "Models"
         const val DATA_FILE_ENDING = "_data.csv"
+        const val BINARY_DATA_FILE_ENDING = "_data.bin"
         const val TRAINED_MODEL_FILE_ENDING = "_model.json"
+        const val CHECKPOINT_FILE_ENDING = "_checkpoint.json"
+        const val CHECKPOINT_INTERVAL = 500
+        const val TELEMETRY_INTERVAL_MILLIS = 100L
+        const val COST_REPORT_INTERVAL = 10
+        const val DATASET_CACHE_BUDGET_BYTES = 64L * 1024 * 1024
     }
 }
\ No newline at end of file
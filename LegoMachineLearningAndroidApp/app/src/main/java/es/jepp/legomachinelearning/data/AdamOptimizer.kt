@@ -0,0 +1,76 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * The Adam optimizer, which scales the step for each feature by running estimates of the gradient's first and second moments.
+ */
+class AdamOptimizer : Optimizer {
+    private val learningRate: Float
+    private val beta1: Float
+    private val beta2: Float
+    private val epsilon: Float
+
+    private var firstMoment: FloatArray? = null
+    private var secondMoment: FloatArray? = null
+    private var numberOfSteps = 0
+
+    constructor(learningRate: Float, beta1: Float = 0.9f, beta2: Float = 0.999f, epsilon: Float = 1e-8f) {
+        this.learningRate = learningRate
+        this.beta1 = beta1
+        this.beta2 = beta2
+        this.epsilon = epsilon
+    }
+
+    override fun step(theta: FloatArray, gradient: FloatArray) {
+        if (firstMoment == null || firstMoment!!.size != theta.size) {
+            firstMoment = FloatArray(theta.size)
+            secondMoment = FloatArray(theta.size)
+            numberOfSteps = 0
+        }
+        val m = firstMoment!!
+        val v = secondMoment!!
+
+        numberOfSteps++
+        val firstMomentCorrection = 1 - Math.pow(beta1.toDouble(), numberOfSteps.toDouble()).toFloat()
+        val secondMomentCorrection = 1 - Math.pow(beta2.toDouble(), numberOfSteps.toDouble()).toFloat()
+
+        for (j in theta.indices) {
+            val g = gradient[j]
+            m[j] = beta1 * m[j] + (1 - beta1) * g
+            v[j] = beta2 * v[j] + (1 - beta2) * g * g
+
+            val mHat = m[j] / firstMomentCorrection
+            val vHat = v[j] / secondMomentCorrection
+            theta[j] -= learningRate * mHat / (Math.sqrt(vHat.toDouble()).toFloat() + epsilon)
+        }
+    }
+
+    /**
+     * The state is the number of steps followed by the first and the second moments.
+     */
+    override fun saveState(): FloatArray {
+        if (firstMoment == null) {
+            return FloatArray(0)
+        }
+
+        val n = firstMoment!!.size
+        val state = FloatArray(1 + 2 * n)
+        state[0] = numberOfSteps.toFloat()
+        System.arraycopy(firstMoment!!, 0, state, 1, n)
+        System.arraycopy(secondMoment!!, 0, state, 1 + n, n)
+        return state
+    }
+
+    override fun restoreState(state: FloatArray) {
+        if (state.isEmpty()) {
+            firstMoment = null
+            secondMoment = null
+            numberOfSteps = 0
+            return
+        }
+
+        val n = (state.size - 1) / 2
+        numberOfSteps = state[0].toInt()
+        firstMoment = state.copyOfRange(1, 1 + n)
+        secondMoment = state.copyOfRange(1 + n, 1 + 2 * n)
+    }
+}
@@ -0,0 +1,70 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * Gradient descent where the step size is chosen from the last two iterations (Barzilai-Borwein):
+ * α = (sᵀs) / (sᵀy) with s = θₖ - θₖ₋₁ and y = ∇J(θₖ) - ∇J(θₖ₋₁).
+ * The learning rate is only used for the first step and whenever the estimate isn't usable.
+ */
+class BarzilaiBorweinOptimizer : Optimizer {
+    private val learningRate: Float
+
+    private var previousTheta: FloatArray? = null
+    private var previousGradient: FloatArray? = null
+
+    constructor(learningRate: Float) {
+        this.learningRate = learningRate
+    }
+
+    override fun step(theta: FloatArray, gradient: FloatArray) {
+        var stepSize = learningRate.toDouble()
+
+        if (previousTheta != null && previousTheta!!.size == theta.size) {
+            var sTs = 0.0
+            var sTy = 0.0
+            for (j in theta.indices) {
+                val s = (theta[j] - previousTheta!![j]).toDouble()
+                val y = (gradient[j] - previousGradient!![j]).toDouble()
+                sTs += s * s
+                sTy += s * y
+            }
+
+            // For a convex cost sᵀy is positive, anything else means the estimate can't be trusted
+            if (sTy > 0.0 && sTs > 0.0) {
+                stepSize = sTs / sTy
+            }
+        } else {
+            previousTheta = FloatArray(theta.size)
+            previousGradient = FloatArray(theta.size)
+        }
+
+        System.arraycopy(theta, 0, previousTheta!!, 0, theta.size)
+        System.arraycopy(gradient, 0, previousGradient!!, 0, gradient.size)
+
+        for (j in theta.indices) {
+            theta[j] -= (stepSize * gradient[j]).toFloat()
+        }
+    }
+
+    /**
+     * The state is the previous theta followed by the previous gradient.
+     */
+    override fun saveState(): FloatArray {
+        if (previousTheta == null) {
+            return FloatArray(0)
+        }
+
+        return previousTheta!! + previousGradient!!
+    }
+
+    override fun restoreState(state: FloatArray) {
+        if (state.isEmpty()) {
+            previousTheta = null
+            previousGradient = null
+            return
+        }
+
+        val n = state.size / 2
+        previousTheta = state.copyOfRange(0, n)
+        previousGradient = state.copyOfRange(n, 2 * n)
+    }
+}
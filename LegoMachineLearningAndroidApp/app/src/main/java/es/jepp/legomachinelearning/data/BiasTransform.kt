@@ -0,0 +1,25 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * The constant bias feature 1.
+ */
+object BiasTransform : FeatureTransform {
+    override fun getNumberOfFeatures(numberOfPixels: Int): Int {
+        return 1
+    }
+
+    override fun computeHypothesis(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                                   theta: FloatArray, thetaOffset: Int): Float {
+        return theta[thetaOffset]
+    }
+
+    override fun accumulateGradientSums(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                                        residual: Float, gradientSums: FloatArray, thetaOffset: Int) {
+        gradientSums[thetaOffset] += residual
+    }
+
+    override fun generateFeatures(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                                  features: FloatArray, featureOffset: Int) {
+        features[featureOffset] = 1f
+    }
+}
@@ -0,0 +1,189 @@
+package es.jepp.legomachinelearning.data
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+
+/**
+ * Reads and writes the binary data file format:
+ * a header with the magic number, the version, the image geometry, the number of pixels and the downsampling method (10 little-endian ints)
+ * and the length and modification time of the CSV data file it was converted from (2 little-endian longs), followed by fixed-size records with the label as a float and then one unsigned byte per pixel.
+ * The label is the steering angle scaled to between -1 and 1, exactly as [CsvToDataConverter] returns it.
+ * The number of records follows from the file size, so records can be appended without touching the header.
+ * Version 1 files, which don't have the downsampling method in the header, and version 2 files, which don't have the source file, can still be read.
+ */
+object BinaryDatasetConverter {
+    const val MAGIC_NUMBER = 0x444C4D4C // "LMLD" in little-endian
+    const val VERSION = 3
+    const val HEADER_SIZE = 10 * 4 + 2 * 8
+    const val VERSION_2_HEADER_SIZE = 10 * 4
+    const val VERSION_1_HEADER_SIZE = 9 * 4
+
+    /**
+     * Converts a CSV data file to the binary format, one record at a time, so the dataset is never held in memory.
+     * The records are written to a temporary file that is renamed over [binaryFile] once it is complete,
+     * so a conversion that is cut short never leaves a file whose header claims it matches the CSV file.
+     */
+    fun convertCsvFileToBinaryFile(csvFile: File, binaryFile: File) {
+        // Read before parsing, so a file that changes while it is parsed is converted again next time
+        val sourceFileLength = csvFile.length()
+        val sourceFileLastModified = csvFile.lastModified()
+        val firstLine = csvFile.useLines { lines -> lines.firstOrNull { it.isNotBlank() } }
+            ?: throw Exception("The data file doesn't contain any data.")
+        val header = parseHeader(firstLine, sourceFileLength, sourceFileLastModified)
+
+        val numberOfPixels = header.numberOfPixels
+        val recordSize = header.getRecordSize()
+        val records = ByteBuffer.allocate(Math.max(recordSize, 64 * 1024)).order(ByteOrder.LITTLE_ENDIAN)
+        val pixels = ByteArray(numberOfPixels)
+        val temporaryFile = File(binaryFile.path + ".tmp")
+
+        try {
+            csvFile.inputStream().use { input ->
+                RandomAccessFile(temporaryFile, "rw").use { file ->
+                    file.setLength(0)
+                    val channel = file.channel
+                    writeHeader(channel, header)
+
+                    val parser = CsvDataParser(input)
+                    while (parser.readRecord(pixels, 0, numberOfPixels)) {
+                        if (records.remaining() < recordSize) {
+                            writeFully(channel, records)
+                        }
+                        records.putFloat(parser.getLabel())
+                        records.put(pixels)
+                    }
+                    writeFully(channel, records)
+                }
+            }
+
+            if (!temporaryFile.renameTo(binaryFile))
+                throw IOException("Could not rename ${temporaryFile.name} to ${binaryFile.name}.")
+        } finally {
+            temporaryFile.delete()
+        }
+    }
+
+    fun writeHeader(channel: FileChannel, header: BinaryDatasetHeader) {
+        val buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.putInt(MAGIC_NUMBER)
+        buffer.putInt(header.version)
+        buffer.putInt(header.processedImageWidth)
+        buffer.putInt(header.processedImageHeight)
+        buffer.putInt(header.sourceImagePositionX)
+        buffer.putInt(header.sourceImagePositionY)
+        buffer.putInt(header.sourceImageWidth)
+        buffer.putInt(header.sourceImageHeight)
+        buffer.putInt(header.numberOfPixels)
+        buffer.putInt(header.downsamplingMethod.ordinal)
+        buffer.putLong(header.sourceFileLength)
+        buffer.putLong(header.sourceFileLastModified)
+        buffer.flip()
+        channel.write(buffer)
+    }
+
+    fun readHeader(binaryFile: File): BinaryDatasetHeader {
+        RandomAccessFile(binaryFile, "r").use { file ->
+            val buffer = file.channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(file.length(), HEADER_SIZE.toLong()))
+            return readHeader(buffer.order(ByteOrder.LITTLE_ENDIAN))
+        }
+    }
+
+    /**
+     * Maps the binary data file into memory and copies the records into a [PixelDataset]. Nothing is parsed.
+     */
+    fun readPixelDataset(binaryFile: File): PixelDataset {
+        RandomAccessFile(binaryFile, "r").use { file ->
+            val buffer = file.channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length())
+            buffer.order(ByteOrder.LITTLE_ENDIAN)
+
+            val header = readHeader(buffer)
+            val recordSize = header.getRecordSize()
+            val numberOfPixels = header.numberOfPixels
+            val headerSize = header.getHeaderSize()
+            if ((file.length() - headerSize) % recordSize != 0L)
+                throw Exception("The binary data file ends with an incomplete record.")
+
+            val numberOfSamples = ((file.length() - headerSize) / recordSize).toInt()
+            val pixels = ByteArray(numberOfSamples * numberOfPixels)
+            val y = FloatArray(numberOfSamples)
+
+            for (i in 0 until numberOfSamples) {
+                y[i] = buffer.getFloat()
+                buffer.get(pixels, i * numberOfPixels, numberOfPixels)
+            }
+
+            return PixelDataset(numberOfSamples, numberOfPixels, pixels, y)
+        }
+    }
+
+    fun generateTrainedModel(binaryFile: File, theta: FloatArray): TrainedModel {
+        val header = readHeader(binaryFile)
+
+        return TrainedModel(
+            theta,
+            header.processedImageWidth,
+            header.processedImageHeight,
+            header.sourceImagePositionX,
+            header.sourceImagePositionY,
+            header.sourceImageWidth,
+            header.sourceImageHeight,
+            header.downsamplingMethod)
+    }
+
+    private fun writeFully(channel: FileChannel, buffer: ByteBuffer) {
+        buffer.flip()
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+        buffer.clear()
+    }
+
+    private fun readHeader(buffer: ByteBuffer): BinaryDatasetHeader {
+        if (buffer.remaining() < VERSION_1_HEADER_SIZE || buffer.getInt() != MAGIC_NUMBER)
+            throw Exception("The file is not a binary data file.")
+
+        val version = buffer.getInt()
+        if (version < 1 || version > VERSION)
+            throw Exception("Version $version of the binary data file is not supported.")
+        val headerSize = if (version == 1) VERSION_1_HEADER_SIZE else if (version == 2) VERSION_2_HEADER_SIZE else HEADER_SIZE
+        if (buffer.remaining() < headerSize - 8)
+            throw Exception("The file is not a binary data file.")
+
+        return BinaryDatasetHeader(
+            version,
+            buffer.getInt(),
+            buffer.getInt(),
+            buffer.getInt(),
+            buffer.getInt(),
+            buffer.getInt(),
+            buffer.getInt(),
+            buffer.getInt(),
+            if (version == 1) DownsamplingMethod.BLOCK_AVERAGE else DownsamplingMethod.fromOrdinal(buffer.getInt()),
+            if (version < 3) -1L else buffer.getLong(),
+            if (version < 3) -1L else buffer.getLong())
+    }
+
+    /**
+     * Reads the image geometry from the first column of a CSV line, "w;h;x;y;w;h" optionally followed by ";m".
+     */
+    private fun parseHeader(line: String, sourceFileLength: Long, sourceFileLastModified: Long): BinaryDatasetHeader {
+        val splittedDataElement = line.substring(0, line.indexOf(',')).split(";")
+
+        return BinaryDatasetHeader(
+            VERSION,
+            splittedDataElement[0].toInt(),
+            splittedDataElement[1].toInt(),
+            splittedDataElement[2].toInt(),
+            splittedDataElement[3].toInt(),
+            splittedDataElement[4].toInt(),
+            splittedDataElement[5].toInt(),
+            CsvToDataConverter.getNumberOfPixels(line),
+            if (splittedDataElement.size > 6) DownsamplingMethod.fromOrdinal(splittedDataElement[6].toInt()) else DownsamplingMethod.BLOCK_AVERAGE,
+            sourceFileLength,
+            sourceFileLastModified)
+    }
+}
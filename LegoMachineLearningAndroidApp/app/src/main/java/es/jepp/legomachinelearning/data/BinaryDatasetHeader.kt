@@ -0,0 +1,71 @@
+package es.jepp.legomachinelearning.data
+
+import java.io.File
+
+/**
+ * The header of a binary data file: the format version, the image geometry that is the same for every record,
+ * and the length and modification time of the CSV data file it was converted from.
+ */
+class BinaryDatasetHeader {
+    val version: Int
+    val processedImageWidth: Int
+    val processedImageHeight: Int
+    val sourceImagePositionX: Int
+    val sourceImagePositionY: Int
+    val sourceImageWidth: Int
+    val sourceImageHeight: Int
+    val numberOfPixels: Int
+    val downsamplingMethod: DownsamplingMethod
+    val sourceFileLength: Long
+    val sourceFileLastModified: Long
+
+    constructor(version: Int,
+                processedImageWidth: Int,
+                processedImageHeight: Int,
+                sourceImagePositionX: Int,
+                sourceImagePositionY: Int,
+                sourceImageWidth: Int,
+                sourceImageHeight: Int,
+                numberOfPixels: Int,
+                downsamplingMethod: DownsamplingMethod,
+                sourceFileLength: Long,
+                sourceFileLastModified: Long) {
+        this.version = version
+        this.processedImageWidth = processedImageWidth
+        this.processedImageHeight = processedImageHeight
+        this.sourceImagePositionX = sourceImagePositionX
+        this.sourceImagePositionY = sourceImagePositionY
+        this.sourceImageWidth = sourceImageWidth
+        this.sourceImageHeight = sourceImageHeight
+        this.numberOfPixels = numberOfPixels
+        this.downsamplingMethod = downsamplingMethod
+        this.sourceFileLength = sourceFileLength
+        this.sourceFileLastModified = sourceFileLastModified
+    }
+
+    /**
+     * The size in bytes of the header. Version 1 files didn't store the downsampling method,
+     * and version 2 files didn't store the source file.
+     */
+    fun getHeaderSize(): Int {
+        return when (version) {
+            1 -> BinaryDatasetConverter.VERSION_1_HEADER_SIZE
+            2 -> BinaryDatasetConverter.VERSION_2_HEADER_SIZE
+            else -> BinaryDatasetConverter.HEADER_SIZE
+        }
+    }
+
+    /**
+     * Whether this file was converted from [csvFile] as it is now. Files from before the source file was stored never are.
+     */
+    fun isConvertedFrom(csvFile: File): Boolean {
+        return version >= 3 && sourceFileLength == csvFile.length() && sourceFileLastModified == csvFile.lastModified()
+    }
+
+    /**
+     * The size in bytes of one record: the label as a float followed by one byte per pixel.
+     */
+    fun getRecordSize(): Int {
+        return 4 + numberOfPixels
+    }
+}
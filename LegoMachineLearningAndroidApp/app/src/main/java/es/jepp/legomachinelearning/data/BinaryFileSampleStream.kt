@@ -0,0 +1,76 @@
+package es.jepp.legomachinelearning.data
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Streams the samples of a binary data file (see [BinaryDatasetConverter]), reading the records in blocks of about [bufferSize] bytes.
+ */
+class BinaryFileSampleStream : SampleStream {
+    private val featurePipeline: FeaturePipeline
+    private val file: RandomAccessFile
+    private val numberOfPixels: Int
+    private val recordSize: Int
+    private val headerSize: Int
+    private val buffer: ByteBuffer
+    private val pixels: ByteArray
+    private var position = 0L
+
+    override val numberOfFeatures: Int
+
+    constructor(binaryFile: File, featurePipeline: FeaturePipeline = FeaturePipeline.DEFAULT, bufferSize: Int = 64 * 1024) {
+        val header = BinaryDatasetConverter.readHeader(binaryFile)
+
+        this.featurePipeline = featurePipeline
+        this.numberOfPixels = header.numberOfPixels
+        this.recordSize = header.getRecordSize()
+        this.headerSize = header.getHeaderSize()
+        this.numberOfFeatures = featurePipeline.getNumberOfFeatures(numberOfPixels)
+        this.pixels = ByteArray(numberOfPixels)
+
+        // Whole records only, so a record never spans two reads
+        this.buffer = ByteBuffer.allocate(Math.max(1, bufferSize / recordSize) * recordSize).order(ByteOrder.LITTLE_ENDIAN)
+        this.file = RandomAccessFile(binaryFile, "r")
+        reset()
+    }
+
+    override fun next(sample: Sample): Boolean {
+        if (!buffer.hasRemaining() && !fillBuffer()) {
+            return false
+        }
+
+        sample.y = buffer.getFloat()
+        buffer.get(pixels)
+        featurePipeline.generateFeatures(pixels, 0, numberOfPixels, sample.x)
+        return true
+    }
+
+    override fun reset() {
+        position = headerSize.toLong()
+        buffer.clear()
+        buffer.limit(0)
+    }
+
+    override fun close() {
+        file.close()
+    }
+
+    private fun fillBuffer(): Boolean {
+        buffer.clear()
+        val channel = file.channel
+        while (buffer.hasRemaining()) {
+            val count = channel.read(buffer, position)
+            if (count < 0) {
+                break
+            }
+            position += count
+        }
+        buffer.flip()
+
+        if (buffer.limit() % recordSize != 0)
+            throw Exception("The binary data file ends with an incomplete record.")
+        return buffer.hasRemaining()
+    }
+}
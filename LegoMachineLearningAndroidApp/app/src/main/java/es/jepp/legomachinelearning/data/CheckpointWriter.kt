@@ -0,0 +1,109 @@
+package es.jepp.legomachinelearning.data
+
+import com.google.gson.Gson
+import com.google.gson.JsonParseException
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Writes [TrainingCheckpoint]s to a file on a background thread, so the training loop never waits for the disk.
+ * If checkpoints arrive faster than they can be written, only the newest one is written.
+ * Every checkpoint is written to a temporary file first and then renamed over the old one in a single step,
+ * so the file always holds a complete checkpoint. A failed write is reported to the [ErrorHandler] and the old checkpoint is kept.
+ */
+class CheckpointWriter {
+    private val file: File
+    private val temporaryFile: File
+    private val executor: ExecutorService
+    private val pendingCheckpoint = AtomicReference<TrainingCheckpoint?>(null)
+    private val errorHandler: ErrorHandler?
+
+    /**
+     * The last error of a write, if any.
+     */
+    @Volatile var writeError: Exception? = null
+        private set
+
+    constructor(file: File, errorHandler: ErrorHandler? = null) {
+        this.file = file
+        this.temporaryFile = getTemporaryFile(file)
+        this.executor = Executors.newSingleThreadExecutor()
+        this.errorHandler = errorHandler
+    }
+
+    fun write(checkpoint: TrainingCheckpoint) {
+        // Only schedule a write if none is waiting, the waiting one will pick up the newest checkpoint
+        if (pendingCheckpoint.getAndSet(checkpoint) == null) {
+            executor.execute {
+                val newestCheckpoint = pendingCheckpoint.getAndSet(null)
+                if (newestCheckpoint != null) {
+                    try {
+                        temporaryFile.writeText(Gson().toJson(newestCheckpoint))
+                        // A rename replaces the old file in one step, so there is never a moment without a checkpoint
+                        if (!temporaryFile.renameTo(file))
+                            throw IOException("Could not rename ${temporaryFile.name} to ${file.name}.")
+                    } catch (e: Exception) {
+                        writeError = e
+                        errorHandler?.checkpointWriteFailed(e)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the checkpoint once the writes that are already scheduled are done.
+     */
+    fun delete() {
+        pendingCheckpoint.set(null)
+        executor.execute {
+            file.delete()
+            temporaryFile.delete()
+        }
+    }
+
+    /**
+     * Waits for the scheduled writes and stops the background thread.
+     */
+    fun finish() {
+        executor.shutdown()
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Called on the writer's thread when a checkpoint could not be written.
+     */
+    interface ErrorHandler {
+        fun checkpointWriteFailed(e: Exception)
+    }
+
+    companion object {
+        /**
+         * Reads the checkpoint, or the temporary file of the last write if the checkpoint is missing or can't be read,
+         * which happens when the app stopped right before or during a rename. Returns null if neither has a checkpoint.
+         */
+        fun readCheckpoint(file: File): TrainingCheckpoint? {
+            return readCheckpointFile(file) ?: readCheckpointFile(getTemporaryFile(file))
+        }
+
+        private fun readCheckpointFile(file: File): TrainingCheckpoint? {
+            if (!file.exists()) {
+                return null
+            }
+
+            return try {
+                Gson().fromJson(file.readText(), TrainingCheckpoint::class.java)
+            } catch (e: JsonParseException) {
+                null
+            }
+        }
+
+        private fun getTemporaryFile(file: File): File {
+            return File(file.path + ".tmp")
+        }
+    }
+}
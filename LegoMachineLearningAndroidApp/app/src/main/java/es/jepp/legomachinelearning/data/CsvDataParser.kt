@@ -0,0 +1,287 @@
+package es.jepp.legomachinelearning.data
+
+import java.io.InputStream
+
+/**
+ * Parses the CSV data file byte by byte from a reusable buffer, straight into primitive arrays.
+ * No String or boxed number is created per field, so the cost is a few operations per byte.
+ *
+ * Each line has the layout "w;h;x;y;w;h;m,angle,pixel,...,pixel" where the geometry and the pixels are integers
+ * and the steering angle is a decimal number. The downsampling method m is missing in older files. Blank lines are skipped and both "\n" and "\r\n" line endings are accepted.
+ * Malformed input throws an exception with the line and column of the offending character.
+ */
+class CsvDataParser {
+    private val input: InputStream
+    private val buffer: ByteArray
+    private var position = 0
+    private var limit = 0
+
+    private var lineNumber = 1
+    private var column = 0
+    private var delimiter = 0
+
+    /**
+     * The image geometry of the last record: processed width and height, source position x and y, source width and height,
+     * and the ordinal of the [DownsamplingMethod]. Files from before the method could be chosen don't have it, so it is 0 for them.
+     */
+    val geometry = IntArray(7)
+
+    /**
+     * The steering angle of the last record in percent, as written in the file.
+     */
+    var steeringAngle = 0f
+        private set
+
+    constructor(input: InputStream, bufferSize: Int = 64 * 1024) {
+        this.input = input
+        this.buffer = ByteArray(bufferSize)
+    }
+
+    /**
+     * Parses the next record into [pixels], starting at [offset], and returns false at the end of the input.
+     * The record must have exactly [numberOfPixels] pixels.
+     */
+    fun readRecord(pixels: ByteArray, offset: Int, numberOfPixels: Int): Boolean {
+        if (!skipBlankLines()) {
+            return false
+        }
+
+        geometry[6] = 0
+        for (i in 0 until 7) {
+            geometry[i] = parseInteger()
+            if (i >= 5 && delimiter == COMMA) {
+                break
+            }
+            if (delimiter != SEMICOLON || i == 6) {
+                val expected = if (i < 5) SEMICOLON else COMMA
+                throw malformed("expected '${expected.toChar()}' after the image geometry value")
+            }
+        }
+
+        steeringAngle = parseDecimal()
+        if (delimiter != COMMA) {
+            throw malformed("expected ',' after the steering angle")
+        }
+
+        for (i in 0 until numberOfPixels) {
+            if (i > 0 && delimiter != COMMA) {
+                throw malformed("expected $numberOfPixels pixels but the line ends after $i")
+            }
+
+            val pixel = parseInteger()
+            if (pixel < 0 || pixel > 255) {
+                throw malformed("pixel value $pixel is outside 0 to 255")
+            }
+            pixels[offset + i] = pixel.toByte()
+        }
+
+        if (delimiter == COMMA) {
+            throw malformed("expected $numberOfPixels pixels but the line has more")
+        }
+        finishLine()
+
+        return true
+    }
+
+    /**
+     * The label of the last record: the steering angle scaled to between -1 and 1.
+     */
+    fun getLabel(): Float {
+        return (steeringAngle - 50f) / 50f
+    }
+
+    private fun skipBlankLines(): Boolean {
+        while (true) {
+            val b = peekByte()
+            when (b) {
+                END_OF_INPUT -> return false
+                CARRIAGE_RETURN, SPACE, TAB -> nextByte()
+                NEW_LINE -> {
+                    nextByte()
+                    startNewLine()
+                }
+                else -> return true
+            }
+        }
+    }
+
+    private fun finishLine() {
+        // The delimiter has already been consumed, so a "\r" must be followed by "\n"
+        if (delimiter == CARRIAGE_RETURN) {
+            val b = nextByte()
+            if (b != NEW_LINE && b != END_OF_INPUT) {
+                throw malformed("expected the end of the line")
+            }
+            delimiter = b
+        }
+        if (delimiter != NEW_LINE && delimiter != END_OF_INPUT) {
+            throw malformed("expected the end of the line")
+        }
+        if (delimiter == NEW_LINE) {
+            startNewLine()
+        }
+    }
+
+    /**
+     * Parses an integer and consumes the byte after it into [delimiter].
+     * A fractional part is accepted and dropped, like converting the value to a float and then to an int.
+     */
+    private fun parseInteger(): Int {
+        var b = nextByte()
+        val isNegative = b == MINUS
+        if (isNegative) {
+            b = nextByte()
+        }
+        if (b < ZERO || b > NINE) {
+            throw malformed("expected a number")
+        }
+
+        var value = 0
+        while (b in ZERO..NINE) {
+            value = value * 10 + (b - ZERO)
+            if (value < 0) {
+                throw malformed("number is too large")
+            }
+            b = nextByte()
+        }
+        if (b == DOT) {
+            b = nextByte()
+            while (b in ZERO..NINE) {
+                b = nextByte()
+            }
+        }
+
+        delimiter = b
+        return if (isNegative) -value else value
+    }
+
+    /**
+     * Parses a decimal number, optionally with an exponent like Float.toString writes it, and consumes the byte after it.
+     */
+    private fun parseDecimal(): Float {
+        var b = nextByte()
+        val isNegative = b == MINUS
+        if (isNegative) {
+            b = nextByte()
+        }
+
+        var mantissa = 0L
+        var exponent = 0
+        var numberOfDigits = 0
+        while (b in ZERO..NINE) {
+            if (mantissa < MAX_EXACT_MANTISSA) {
+                mantissa = mantissa * 10 + (b - ZERO)
+            } else {
+                exponent++
+            }
+            numberOfDigits++
+            b = nextByte()
+        }
+        if (b == DOT) {
+            b = nextByte()
+            while (b in ZERO..NINE) {
+                if (mantissa < MAX_EXACT_MANTISSA) {
+                    mantissa = mantissa * 10 + (b - ZERO)
+                    exponent--
+                }
+                numberOfDigits++
+                b = nextByte()
+            }
+        }
+        if (numberOfDigits == 0) {
+            throw malformed("expected a number")
+        }
+        if (b == LOWER_E || b == UPPER_E) {
+            b = nextByte()
+            val isExponentNegative = b == MINUS
+            if (b == MINUS || b == PLUS) {
+                b = nextByte()
+            }
+            if (b < ZERO || b > NINE) {
+                throw malformed("expected the exponent")
+            }
+            var explicitExponent = 0
+            while (b in ZERO..NINE) {
+                explicitExponent = Math.min(explicitExponent * 10 + (b - ZERO), 1000)
+                b = nextByte()
+            }
+            exponent += if (isExponentNegative) -explicitExponent else explicitExponent
+        }
+
+        delimiter = b
+
+        // The mantissa and powers of ten up to 10^22 are exact doubles, so this is a single rounding in most cases
+        var value = mantissa.toDouble()
+        value = when {
+            exponent == 0 -> value
+            exponent > 0 && exponent <= 22 -> value * POWERS_OF_TEN[exponent]
+            exponent < 0 && exponent >= -22 -> value / POWERS_OF_TEN[-exponent]
+            else -> value * Math.pow(10.0, exponent.toDouble())
+        }
+        return (if (isNegative) -value else value).toFloat()
+    }
+
+    private fun startNewLine() {
+        lineNumber++
+        column = 0
+    }
+
+    private fun malformed(reason: String): Exception {
+        return Exception("Malformed data file at line $lineNumber, column $column: $reason.")
+    }
+
+    private fun peekByte(): Int {
+        if (position == limit && !fillBuffer()) {
+            return END_OF_INPUT
+        }
+        // Without the mask, a 0xFF byte would read as END_OF_INPUT
+        return buffer[position].toInt() and 0xFF
+    }
+
+    private fun nextByte(): Int {
+        if (position == limit && !fillBuffer()) {
+            column++
+            return END_OF_INPUT
+        }
+        column++
+        return buffer[position++].toInt() and 0xFF
+    }
+
+    private fun fillBuffer(): Boolean {
+        val count = input.read(buffer, 0, buffer.size)
+        if (count <= 0) {
+            return false
+        }
+        position = 0
+        limit = count
+        return true
+    }
+
+    companion object {
+        private const val END_OF_INPUT = -1
+        private const val NEW_LINE = '\n'.toInt()
+        private const val CARRIAGE_RETURN = '\r'.toInt()
+        private const val SPACE = ' '.toInt()
+        private const val TAB = '\t'.toInt()
+        private const val COMMA = ','.toInt()
+        private const val SEMICOLON = ';'.toInt()
+        private const val DOT = '.'.toInt()
+        private const val MINUS = '-'.toInt()
+        private const val PLUS = '+'.toInt()
+        private const val LOWER_E = 'e'.toInt()
+        private const val UPPER_E = 'E'.toInt()
+        private const val ZERO = '0'.toInt()
+        private const val NINE = '9'.toInt()
+
+        private const val MAX_EXACT_MANTISSA = 100000000000000L
+
+        private val POWERS_OF_TEN = DoubleArray(23)
+
+        init {
+            POWERS_OF_TEN[0] = 1.0
+            for (i in 1 until POWERS_OF_TEN.size) {
+                POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10
+            }
+        }
+    }
+}
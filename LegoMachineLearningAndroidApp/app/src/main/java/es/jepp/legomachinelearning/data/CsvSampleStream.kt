@@ -0,0 +1,53 @@
+package es.jepp.legomachinelearning.data
+
+import java.io.File
+import java.io.FileInputStream
+
+/**
+ * Streams the samples of a CSV data file, parsing each line with [CsvDataParser] when it is read.
+ */
+class CsvSampleStream : SampleStream {
+    private val datafile: File
+    private val featurePipeline: FeaturePipeline
+    private val numberOfPixels: Int
+    private val pixels: ByteArray
+
+    private var input: FileInputStream
+    private var parser: CsvDataParser
+
+    override val numberOfFeatures: Int
+
+    constructor(datafile: File, featurePipeline: FeaturePipeline = FeaturePipeline.DEFAULT) {
+        val firstLine = datafile.useLines { lines -> lines.firstOrNull { it.isNotBlank() } }
+            ?: throw Exception("The data file doesn't contain any data.")
+
+        this.datafile = datafile
+        this.featurePipeline = featurePipeline
+        this.numberOfPixels = CsvToDataConverter.getNumberOfPixels(firstLine)
+        this.numberOfFeatures = featurePipeline.getNumberOfFeatures(numberOfPixels)
+        this.pixels = ByteArray(numberOfPixels)
+
+        input = FileInputStream(datafile)
+        parser = CsvDataParser(input)
+    }
+
+    override fun next(sample: Sample): Boolean {
+        if (!parser.readRecord(pixels, 0, numberOfPixels)) {
+            return false
+        }
+
+        featurePipeline.generateFeatures(pixels, 0, numberOfPixels, sample.x)
+        sample.y = parser.getLabel()
+        return true
+    }
+
+    override fun reset() {
+        input.close()
+        input = FileInputStream(datafile)
+        parser = CsvDataParser(input)
+    }
+
+    override fun close() {
+        input.close()
+    }
+}
@@ -1,44 +1,154 @@
 package es.jepp.legomachinelearning.data
 
 import java.io.File
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
 
 object CsvToDataConverter {
-    fun convertDataFromFile(datafile: File): TrainData {
-        val y = mutableListOf<Float>()
-        val X = mutableListOf<FloatArray>()
+    // Smaller chunks aren't worth a thread
+    private const val MINIMUM_CHUNK_SIZE = 1024 * 1024L
 
-        var numberOfFeatures: Int? = null
+    fun convertDataFromFile(datafile: File): TrainData {
+        val dataset = convertDataFromFileToPixelDataset(datafile)
+        val numberOfPixels = dataset.numberOfPixels
+        val numberOfFeatures = FeaturePipeline.DEFAULT.getNumberOfFeatures(numberOfPixels)
+
+        val X = Array(dataset.numberOfSamples) { i ->
+            val x = FloatArray(numberOfFeatures)
+            FeaturePipeline.DEFAULT.generateFeatures(dataset.pixels, i * numberOfPixels, numberOfPixels, x)
+            x
+        }
 
-        datafile.forEachLine {
-            val splittedLine = it.split(",")
+        val result = TrainData(X, dataset.y)
+        return result
+    }
 
-            var steeringAngle = splittedLine[1].toFloat()
-            steeringAngle = (steeringAngle - 50f) / 50f // make sure the steering angle is between -1 and 1
-            y.add(steeringAngle)
+    /**
+     * Loads the data file into a [PixelDataset], which keeps the raw pixels with one byte per pixel.
+     * The file is parsed with a [CsvDataParser], so no String is created per value.
+     *
+     * With more than one thread, the file is split into chunks that start at a line break and are parsed concurrently.
+     * The chunks are put together in file order, so the result is the same as with one thread.
+     */
+    fun convertDataFromFileToPixelDataset(datafile: File, numberOfThreads: Int = 1): PixelDataset {
+        val firstLine = datafile.useLines { lines -> lines.firstOrNull { it.isNotBlank() } }
+            ?: return PixelDataset(0, 0, ByteArray(0), FloatArray(0))
+        val numberOfPixels = getNumberOfPixels(firstLine)
+        val fileLength = datafile.length()
+        val numberOfChunks = Math.max(1, Math.min(numberOfThreads.toLong(), fileLength / MINIMUM_CHUNK_SIZE).toInt())
+
+        if (numberOfChunks == 1) {
+            return parsePixelChunk(datafile, 0, fileLength, numberOfPixels, firstLine.length)
+        }
 
-            val thisNumberOfFeatures = splittedLine.size - 2
-            if (numberOfFeatures == null) {
-                numberOfFeatures = thisNumberOfFeatures
+        val chunkStarts = findChunkStarts(datafile, numberOfChunks)
+        val pool = ForkJoinPool(numberOfChunks)
+        val chunks: List<PixelDataset>
+        try {
+            val tasks = (0 until numberOfChunks).map { chunk ->
+                Callable<PixelDataset> {
+                    parsePixelChunk(datafile, chunkStarts[chunk], chunkStarts[chunk + 1], numberOfPixels, firstLine.length)
+                }
             }
-            else if (numberOfFeatures != thisNumberOfFeatures) {
-                throw Exception("All data must have the same number of features.")
+            chunks = pool.invokeAll(tasks).map { it.get() }
+        } catch (e: ExecutionException) {
+            // Only a sequential parse knows the line number of the error, so let it report the error
+            return convertDataFromFileToPixelDataset(datafile, 1)
+        } finally {
+            pool.shutdown()
+        }
+
+        val numberOfSamples = chunks.sumBy { it.numberOfSamples }
+        val pixels = ByteArray(numberOfSamples * numberOfPixels)
+        val y = FloatArray(numberOfSamples)
+        var i = 0
+        for (chunk in chunks) {
+            System.arraycopy(chunk.pixels, 0, pixels, i * numberOfPixels, chunk.pixels.size)
+            System.arraycopy(chunk.y, 0, y, i, chunk.numberOfSamples)
+            i += chunk.numberOfSamples
+        }
+
+        return PixelDataset(numberOfSamples, numberOfPixels, pixels, y)
+    }
+
+    /**
+     * Returns numberOfChunks + 1 byte offsets where every chunk but the first starts right after a line break.
+     */
+    private fun findChunkStarts(datafile: File, numberOfChunks: Int): LongArray {
+        val fileLength = datafile.length()
+        val chunkStarts = LongArray(numberOfChunks + 1)
+        chunkStarts[numberOfChunks] = fileLength
+
+        RandomAccessFile(datafile, "r").use { file ->
+            val buffer = ByteArray(4096)
+            for (chunk in 1 until numberOfChunks) {
+                var position = Math.max(chunkStarts[chunk - 1], chunk * fileLength / numberOfChunks)
+                var start = fileLength
+
+                file.seek(position)
+                while (start == fileLength) {
+                    val count = file.read(buffer)
+                    if (count <= 0) {
+                        break
+                    }
+                    for (j in 0 until count) {
+                        if (buffer[j] == '\n'.toByte()) {
+                            start = position + j + 1
+                            break
+                        }
+                    }
+                    position += count
+                }
+
+                chunkStarts[chunk] = start
             }
+        }
 
-            val x = FloatArray(thisNumberOfFeatures * 2 + 1)
-            //val x = FloatArray(thisNumberOfFeatures + 1)
-            x[0] = 1f
+        return chunkStarts
+    }
 
-            for(i in 1..thisNumberOfFeatures) {
-                val feature = splittedLine[i + 1].toFloat()
-                x[i] = 1f- feature / 255f // make sure the pixel value is normalized to be between 0 and 1
-                x[i + thisNumberOfFeatures] = x[i] * x[i]
+    private fun parsePixelChunk(datafile: File, start: Long, end: Long, numberOfPixels: Int, lineLength: Int): PixelDataset {
+        // Every line is about as long as the first one, so this is usually close to the final number of samples
+        var capacity = ((end - start) / (lineLength + 1) + 1).toInt()
+        var pixels = ByteArray(capacity * numberOfPixels)
+        var y = FloatArray(capacity)
+        var numberOfSamples = 0
+
+        RandomAccessFile(datafile, "r").use { file ->
+            val parser = CsvDataParser(FileChunkInputStream(file.channel, start, end))
+            while (true) {
+                if (numberOfSamples == capacity) {
+                    capacity += capacity / 2 + 1
+                    pixels = pixels.copyOf(capacity * numberOfPixels)
+                    y = y.copyOf(capacity)
+                }
+
+                if (!parser.readRecord(pixels, numberOfSamples * numberOfPixels, numberOfPixels)) {
+                    break
+                }
+                y[numberOfSamples] = parser.getLabel()
+                numberOfSamples++
             }
+        }
 
-            X.add(x)
+        if (numberOfSamples < capacity) {
+            pixels = pixels.copyOf(numberOfSamples * numberOfPixels)
+            y = y.copyOf(numberOfSamples)
         }
 
-        val result = TrainData(X.toTypedArray(), y.toFloatArray())
-        return result
+        return PixelDataset(numberOfSamples, numberOfPixels, pixels, y)
+    }
+
+    /**
+     * Returns the number of pixels in a line from the data file.
+     */
+    fun getNumberOfPixels(line: String): Int {
+        return line.count { it == ',' } - 1
     }
 
     fun generateTrainedModel(datafile: File, theta: FloatArray): TrainedModel {
@@ -48,6 +158,7 @@ object CsvToDataConverter {
         var sourceImagePositionY = 0
         var sourceImageWidth = 0
         var sourceImageHeight = 0
+        var downsamplingMethod = DownsamplingMethod.BLOCK_AVERAGE
 
         datafile.useLines {
             val firstLine = it.first()
@@ -59,6 +170,9 @@ object CsvToDataConverter {
             sourceImagePositionY = splittedDataElement[3].toInt()
             sourceImageWidth = splittedDataElement[4].toInt()
             sourceImageHeight = splittedDataElement[5].toInt()
+            if (splittedDataElement.size > 6) {
+                downsamplingMethod = DownsamplingMethod.fromOrdinal(splittedDataElement[6].toInt())
+            }
         }
 
         var result = TrainedModel(
@@ -68,23 +182,49 @@ object CsvToDataConverter {
             sourceImagePositionX,
             sourceImagePositionY,
             sourceImageWidth,
-            sourceImageHeight)
+            sourceImageHeight,
+            downsamplingMethod)
 
         return result
     }
 
-    fun generateFeaturesFromGrayscalePixels(grayscalePixels: IntArray): FloatArray {
-        val numberOfPixels = grayscalePixels.size
+    fun convertGrayscalePixelsToBytes(grayscalePixels: IntArray, target: ByteArray) {
+        for (i in grayscalePixels.indices) {
+            target[i] = grayscalePixels[i].toByte()
+        }
+    }
+}
+
+/**
+ * Reads the bytes from [start] (inclusive) to [end] (exclusive) of a file without moving the channel's position,
+ * so several of them can read the same file at the same time.
+ */
+private class FileChunkInputStream : InputStream {
+    private val channel: FileChannel
+    private var position: Long
+    private val end: Long
+
+    constructor(channel: FileChannel, start: Long, end: Long) {
+        this.channel = channel
+        this.position = start
+        this.end = end
+    }
 
-        val result = FloatArray(numberOfPixels * 2 + 1)
-        //val result = FloatArray(numberOfPixels + 1)
-        result[0] = 1f
+    override fun read(): Int {
+        val b = ByteArray(1)
+        return if (read(b, 0, 1) == 1) b[0].toInt() and 0xFF else -1
+    }
 
-        for (i in 1..numberOfPixels){
-            result[i] = 1f - grayscalePixels[i - 1] / 255f
-            result[i + numberOfPixels] = result[i] * result[i]
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val remaining = end - position
+        if (remaining <= 0) {
+            return -1
         }
 
-        return result
+        val count = channel.read(ByteBuffer.wrap(b, off, Math.min(len.toLong(), remaining).toInt()), position)
+        if (count > 0) {
+            position += count
+        }
+        return count
     }
-}
\ No newline at end of file
+}
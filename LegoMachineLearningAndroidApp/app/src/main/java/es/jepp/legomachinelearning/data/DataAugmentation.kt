@@ -0,0 +1,96 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * Generates cheap variants of the stored images while training, so only the originals have to be stored and parsed.
+ * Each [Variant] can mirror the image, shift its brightness and move it sideways by a few pixels, in a single pass over the pixels.
+ * A mirrored image gets the mirrored label: a steering angle a becomes 100 - a, which is -y for the scaled label.
+ */
+class DataAugmentation {
+    val imageWidth: Int
+    val imageHeight: Int
+    private val variants: Array<Variant>
+
+    val numberOfVariants: Int
+        get() = variants.size
+
+    constructor(imageWidth: Int, imageHeight: Int, variants: Array<Variant>) {
+        if (imageWidth < 1 || imageHeight < 1)
+            throw IllegalArgumentException("The image must be at least one pixel.")
+        if (variants.isEmpty())
+            throw IllegalArgumentException("There must be at least one variant.")
+
+        this.imageWidth = imageWidth
+        this.imageHeight = imageHeight
+        this.variants = variants
+    }
+
+    /**
+     * Returns true if variant [variant] is the stored image itself, so it can be read without a copy.
+     */
+    fun isOriginal(variant: Int): Boolean {
+        return variants[variant] === Variant.ORIGINAL
+    }
+
+    fun getLabel(y: Float, variant: Int): Float {
+        return if (variants[variant].isMirrored) -y else y
+    }
+
+    /**
+     * Writes variant [variant] of the image starting at [pixelOffset] to [target], which must have room for exactly one image.
+     * Pixels that are shifted in from outside the image repeat the edge pixel.
+     */
+    fun generateVariant(pixels: ByteArray, pixelOffset: Int, variant: Int, target: ByteArray) {
+        val numberOfPixels = imageWidth * imageHeight
+        if (target.size != numberOfPixels || pixelOffset + numberOfPixels > pixels.size)
+            throw IllegalArgumentException("The image must have width * height pixels.")
+
+        val v = variants[variant]
+        val lastColumn = imageWidth - 1
+        for (row in 0 until imageHeight) {
+            val rowOffset = row * imageWidth
+            for (column in 0..lastColumn) {
+                var sourceColumn = column + v.cropOffset
+                sourceColumn = if (sourceColumn < 0) 0 else if (sourceColumn > lastColumn) lastColumn else sourceColumn
+                if (v.isMirrored) {
+                    sourceColumn = lastColumn - sourceColumn
+                }
+
+                var value = (pixels[pixelOffset + rowOffset + sourceColumn].toInt() and 0xFF) + v.brightnessShift
+                value = if (value < 0) 0 else if (value > 255) 255 else value
+                target[rowOffset + column] = value.toByte()
+            }
+        }
+    }
+
+    class Variant {
+        val isMirrored: Boolean
+        val brightnessShift: Int
+        val cropOffset: Int
+
+        constructor(isMirrored: Boolean, brightnessShift: Int, cropOffset: Int) {
+            this.isMirrored = isMirrored
+            this.brightnessShift = brightnessShift
+            this.cropOffset = cropOffset
+        }
+
+        companion object {
+            val ORIGINAL = Variant(false, 0, 0)
+        }
+    }
+
+    companion object {
+        /**
+         * The original, its mirror, a brighter copy of the original and a darker copy of the mirror, both moved one pixel sideways.
+         * Every epoch then sees four images per stored one.
+         */
+        fun createDefault(imageWidth: Int, imageHeight: Int): DataAugmentation {
+            return DataAugmentation(imageWidth, imageHeight, arrayOf(
+                Variant.ORIGINAL,
+                Variant(true, 0, 0),
+                Variant(false, 16, 1),
+                Variant(true, -16, -1)))
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package es.jepp.legomachinelearning.data
+
+import java.io.File
+import java.lang.IllegalArgumentException
+
+/**
+ * Keeps parsed datasets in memory, so training the same model again doesn't read the data file again.
+ * Entries are keyed by the path, size and modification time of the CSV data file, so an entry is never used after the file changed.
+ * The least recently used datasets are dropped when the total size goes over [memoryBudgetBytes].
+ *
+ * When a binary data file is given, it is used as a cache on disk: it is created again unless its header records the
+ * current size and modification time of the CSV file, and read instead of the CSV file otherwise.
+ */
+class DatasetCache {
+    private val memoryBudgetBytes: Long
+    private val entries = LinkedHashMap<Key, PixelDataset>(16, 0.75f, true)
+    private var totalBytes = 0L
+
+    var numberOfHits = 0
+        private set
+    var numberOfMisses = 0
+        private set
+
+    constructor(memoryBudgetBytes: Long) {
+        if (memoryBudgetBytes < 0)
+            throw IllegalArgumentException("The memory budget can't be negative.")
+
+        this.memoryBudgetBytes = memoryBudgetBytes
+    }
+
+    /**
+     * Returns the dataset of [csvFile] from memory, or loads it and keeps it if it fits in the budget.
+     * The returned dataset is shared, so it must not be changed.
+     */
+    @Synchronized
+    fun getPixelDataset(csvFile: File, binaryFile: File? = null, numberOfThreads: Int = 1): PixelDataset {
+        val key = Key(csvFile.absolutePath, csvFile.length(), csvFile.lastModified())
+        val cachedDataset = entries[key]
+        if (cachedDataset != null) {
+            numberOfHits++
+            return cachedDataset
+        }
+        numberOfMisses++
+
+        val dataset = if (binaryFile != null) {
+            if (!isConvertedFrom(binaryFile, csvFile)) {
+                BinaryDatasetConverter.convertCsvFileToBinaryFile(csvFile, binaryFile)
+            }
+            BinaryDatasetConverter.readPixelDataset(binaryFile)
+        } else {
+            CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile, numberOfThreads)
+        }
+
+        // Older versions of the same file can never be hit again
+        val staleKeys = entries.keys.filter { it.path == key.path }
+        for (staleKey in staleKeys) {
+            remove(staleKey)
+        }
+
+        val size = getSizeInBytes(dataset)
+        if (size <= memoryBudgetBytes) {
+            entries[key] = dataset
+            totalBytes += size
+            evictToBudget()
+        }
+
+        return dataset
+    }
+
+    @Synchronized
+    fun getTotalBytes(): Long {
+        return totalBytes
+    }
+
+    @Synchronized
+    fun getNumberOfEntries(): Int {
+        return entries.size
+    }
+
+    @Synchronized
+    fun clear() {
+        entries.clear()
+        totalBytes = 0
+    }
+
+    private fun isConvertedFrom(binaryFile: File, csvFile: File): Boolean {
+        if (!binaryFile.exists())
+            return false
+
+        return try {
+            BinaryDatasetConverter.readHeader(binaryFile).isConvertedFrom(csvFile)
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    private fun evictToBudget() {
+        val iterator = entries.entries.iterator()
+        while (totalBytes > memoryBudgetBytes && iterator.hasNext()) {
+            totalBytes -= getSizeInBytes(iterator.next().value)
+            iterator.remove()
+        }
+    }
+
+    private fun remove(key: Key) {
+        val dataset = entries.remove(key)
+        if (dataset != null) {
+            totalBytes -= getSizeInBytes(dataset)
+        }
+    }
+
+    private fun getSizeInBytes(dataset: PixelDataset): Long {
+        return dataset.pixels.size.toLong() + dataset.y.size.toLong() * 4
+    }
+
+    private data class Key(val path: String, val length: Long, val lastModified: Long)
+}
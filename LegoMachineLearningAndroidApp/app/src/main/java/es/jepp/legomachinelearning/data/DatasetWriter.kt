@@ -0,0 +1,171 @@
+package es.jepp.legomachinelearning.data
+
+import java.io.BufferedWriter
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStreamWriter
+import java.io.RandomAccessFile
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Appends frames to the CSV data file from a dedicated thread that keeps the file open.
+ * Frames are handed over through a queue that holds at most [queueCapacity] frames and are flushed in batches of up to [batchSize].
+ *
+ * When the queue is full because storage has fallen behind, new frames are dropped if [dropWhenFull] is true,
+ * so the caller never waits. Otherwise the caller waits until there is room.
+ * The pixels are copied into arrays that are reused once their frame is written, so the caller can reuse its own array.
+ *
+ * A line that was only partly written when the app stopped is cut off the end of the file before appending.
+ */
+class DatasetWriter {
+    private val batchSize: Int
+    private val dropWhenFull: Boolean
+    private val queue: ArrayBlockingQueue<Frame>
+    private val freePixelArrays: ArrayBlockingQueue<IntArray>
+    private val writer: BufferedWriter
+    private val thread: Thread
+
+    @Volatile var numberOfWrittenFrames = 0L
+        private set
+    @Volatile var numberOfDroppedFrames = 0L
+        private set
+    @Volatile var writeError: Exception? = null
+        private set
+
+    constructor(file: File,
+                queueCapacity: Int = 64,
+                batchSize: Int = 16,
+                dropWhenFull: Boolean = true) {
+        if (queueCapacity < 1 || batchSize < 1)
+            throw IllegalArgumentException("The queue and the batches must hold at least one frame.")
+
+        this.batchSize = batchSize
+        this.dropWhenFull = dropWhenFull
+        this.queue = ArrayBlockingQueue(queueCapacity)
+        // Every frame in the queue or in the batch being written holds an array
+        this.freePixelArrays = ArrayBlockingQueue(queueCapacity + batchSize)
+        truncatePartialLine(file)
+        this.writer = BufferedWriter(OutputStreamWriter(FileOutputStream(file, true), Charsets.UTF_8), 64 * 1024)
+
+        thread = Thread({ writeFrames() }, "DatasetWriter")
+        thread.start()
+    }
+
+    /**
+     * Queues a copy of a frame for writing and returns false if it was dropped.
+     */
+    fun offerFrame(grayscalePixels: IntArray,
+                   steeringAngle: Float,
+                   processedImageWidth: Int,
+                   processedImageHeight: Int,
+                   sourceImagePositionX: Int,
+                   sourceImagePositionY: Int,
+                   sourceImageWidth: Int,
+                   sourceImageHeight: Int,
+                   downsamplingMethod: DownsamplingMethod = DownsamplingMethod.BLOCK_AVERAGE): Boolean {
+        var pixels = freePixelArrays.poll()
+        if (pixels == null || pixels.size != grayscalePixels.size) {
+            pixels = IntArray(grayscalePixels.size)
+        }
+        System.arraycopy(grayscalePixels, 0, pixels, 0, pixels.size)
+
+        val frame = Frame(
+            pixels,
+            steeringAngle,
+            "$processedImageWidth;$processedImageHeight;$sourceImagePositionX;$sourceImagePositionY;$sourceImageWidth;$sourceImageHeight;${downsamplingMethod.ordinal}")
+
+        // Once writing has failed nothing is taken from the queue anymore
+        if (dropWhenFull || writeError != null) {
+            if (!queue.offer(frame)) {
+                freePixelArrays.offer(pixels)
+                numberOfDroppedFrames++
+                return false
+            }
+        } else {
+            queue.put(frame)
+        }
+
+        return true
+    }
+
+    /**
+     * Writes the frames that are still queued, then closes the file.
+     */
+    fun close() {
+        while (thread.isAlive && !queue.offer(END_OF_FRAMES, 100, TimeUnit.MILLISECONDS)) {
+        }
+        thread.join()
+    }
+
+    private fun truncatePartialLine(file: File) {
+        if (!file.exists()) {
+            return
+        }
+
+        RandomAccessFile(file, "rw").use { randomAccessFile ->
+            var end = randomAccessFile.length()
+            while (end > 0) {
+                randomAccessFile.seek(end - 1)
+                if (randomAccessFile.read() == '\n'.toInt()) {
+                    break
+                }
+                end--
+            }
+            randomAccessFile.setLength(end)
+        }
+    }
+
+    private fun writeFrames() {
+        val batch = ArrayList<Frame>(batchSize)
+        val line = StringBuilder()
+        var isEnded = false
+
+        try {
+            while (!isEnded) {
+                batch.add(queue.take())
+                queue.drainTo(batch, batchSize - 1)
+
+                for (frame in batch) {
+                    if (frame === END_OF_FRAMES) {
+                        isEnded = true
+                        break
+                    }
+
+                    line.setLength(0)
+                    line.append(frame.geometry).append(',').append(frame.steeringAngle)
+                    for (pixel in frame.grayscalePixels) {
+                        line.append(',').append(pixel)
+                    }
+                    line.append('\n')
+                    writer.append(line)
+                    freePixelArrays.offer(frame.grayscalePixels)
+                    numberOfWrittenFrames++
+                }
+
+                writer.flush()
+                batch.clear()
+            }
+        } catch (e: Exception) {
+            writeError = e
+        } finally {
+            writer.close()
+        }
+    }
+
+    private class Frame {
+        val grayscalePixels: IntArray
+        val steeringAngle: Float
+        val geometry: String
+
+        constructor(grayscalePixels: IntArray, steeringAngle: Float, geometry: String) {
+            this.grayscalePixels = grayscalePixels
+            this.steeringAngle = steeringAngle
+            this.geometry = geometry
+        }
+    }
+
+    companion object {
+        private val END_OF_FRAMES = Frame(IntArray(0), 0f, "")
+    }
+}
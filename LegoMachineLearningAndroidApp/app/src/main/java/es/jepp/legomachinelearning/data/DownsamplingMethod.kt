@@ -0,0 +1,30 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * How the camera image inside the region of interest is reduced to the processed image.
+ * Data files store the ordinal, so new methods must be added at the end.
+ */
+enum class DownsamplingMethod(private val displayName: String) {
+    /**
+     * Every processed pixel is the average of the block of camera pixels it covers. Less noisy.
+     */
+    BLOCK_AVERAGE("Block average"),
+
+    /**
+     * Every processed pixel is the camera pixel in the middle of the block it covers. Cheaper, but noisier.
+     */
+    STRIDE("Stride");
+
+    override fun toString(): String {
+        return displayName
+    }
+
+    companion object {
+        fun fromOrdinal(ordinal: Int): DownsamplingMethod {
+            val methods = values()
+            if (ordinal < 0 || ordinal >= methods.size)
+                throw Exception("Unknown downsampling method $ordinal.")
+            return methods[ordinal]
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * A list of [FeatureTransform]s whose feature blocks are laid out one after the other in theta.
+ *
+ * When the list is a polynomial of the normalized pixels, an optional [BiasTransform] followed by [PixelPowerTransform]s
+ * of power 1, 2 and so on, like [DEFAULT], the hypothesis and the gradient are computed by a fused kernel
+ * that reads every pixel once instead of once per transform.
+ */
+class FeaturePipeline {
+    private val transforms: Array<FeatureTransform>
+
+    // Only used by the fused kernel: 0 if the transforms are not a polynomial
+    private val polynomialDegree: Int
+    private val hasBias: Boolean
+    private val normalizedPixelTable: FloatArray?
+
+    constructor(vararg transforms: FeatureTransform) {
+        this.transforms = arrayOf(*transforms)
+
+        hasBias = transforms.isNotEmpty() && transforms[0] === BiasTransform
+        var degree = 0
+        for (i in (if (hasBias) 1 else 0) until transforms.size) {
+            val transform = transforms[i]
+            if (transform !is PixelPowerTransform || transform.power != degree + 1) {
+                degree = 0
+                break
+            }
+            degree++
+        }
+        polynomialDegree = degree
+        normalizedPixelTable = if (degree == 0) null else PixelPowerTransform(1).copyValueTable()
+    }
+
+    fun getNumberOfFeatures(numberOfPixels: Int): Int {
+        var result = 0
+        for (transform in transforms) {
+            result += transform.getNumberOfFeatures(numberOfPixels)
+        }
+        return result
+    }
+
+    fun computeHypothesis(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int, theta: FloatArray): Float {
+        if (polynomialDegree > 0) {
+            return computePolynomialHypothesis(pixels, pixelOffset, numberOfPixels, theta)
+        }
+
+        var result = 0f
+        var thetaOffset = 0
+        for (transform in transforms) {
+            result += transform.computeHypothesis(pixels, pixelOffset, numberOfPixels, theta, thetaOffset)
+            thetaOffset += transform.getNumberOfFeatures(numberOfPixels)
+        }
+        return result
+    }
+
+    fun computeHypothesis(pixels: ByteArray, theta: FloatArray): Float {
+        return computeHypothesis(pixels, 0, pixels.size, theta)
+    }
+
+    /**
+     * Adds the residual-weighted features of the samples [fromIndex] (inclusive) to [toIndex] (exclusive) to [gradientSums]
+     * and returns the sum of the squared residuals of those samples. Neither result is divided by the number of samples.
+     * With an [augmentation], every variant of every sample is added, so the results cover numberOfVariants times as many samples.
+     * The variants are generated into [variantPixels], which must then hold at least one image and is owned by the caller,
+     * so it can be reused for every call on the same thread.
+     */
+    fun accumulateGradientSums(dataset: PixelDataset, theta: FloatArray,
+                               fromIndex: Int, toIndex: Int, gradientSums: FloatArray,
+                               augmentation: DataAugmentation? = null, variantPixels: ByteArray? = null): Double {
+        val numberOfPixels = dataset.numberOfPixels
+        val numberOfVariants = augmentation?.numberOfVariants ?: 1
+        if (augmentation != null && (variantPixels == null || variantPixels.size < numberOfPixels))
+            throw IllegalArgumentException("An augmentation needs room for the pixels of one image to generate the variants in.")
+        var sumOfSquaredResiduals = 0.0
+
+        for (i in fromIndex until toIndex) {
+            for (variant in 0 until numberOfVariants) {
+                var pixels = dataset.pixels
+                var pixelOffset = i * numberOfPixels
+                var y = dataset.y[i]
+                if (augmentation != null && !augmentation.isOriginal(variant)) {
+                    augmentation.generateVariant(pixels, pixelOffset, variant, variantPixels!!)
+                    pixels = variantPixels
+                    pixelOffset = 0
+                    y = augmentation.getLabel(y, variant)
+                }
+
+                val residual = computeHypothesis(pixels, pixelOffset, numberOfPixels, theta) - y
+                sumOfSquaredResiduals += residual * residual
+
+                if (polynomialDegree > 0) {
+                    accumulatePolynomialGradientSums(pixels, pixelOffset, numberOfPixels, residual, gradientSums)
+                    continue
+                }
+                var thetaOffset = 0
+                for (transform in transforms) {
+                    transform.accumulateGradientSums(pixels, pixelOffset, numberOfPixels, residual, gradientSums, thetaOffset)
+                    thetaOffset += transform.getNumberOfFeatures(numberOfPixels)
+                }
+            }
+        }
+
+        return sumOfSquaredResiduals
+    }
+
+    /**
+     * Writes all features of the image starting at [pixelOffset] to [features]. Only needed where features must be materialized.
+     */
+    fun generateFeatures(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int, features: FloatArray) {
+        var featureOffset = 0
+        for (transform in transforms) {
+            transform.generateFeatures(pixels, pixelOffset, numberOfPixels, features, featureOffset)
+            featureOffset += transform.getNumberOfFeatures(numberOfPixels)
+        }
+    }
+
+    /**
+     * The fused kernel for a polynomial: looks up the normalized pixel x once
+     * and adds theta1 * x + theta2 * x^2 + ... for it with Horner's rule, so the features are never materialized.
+     */
+    private fun computePolynomialHypothesis(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int, theta: FloatArray): Float {
+        val table = normalizedPixelTable!!
+        val firstOffset = if (hasBias) 1 else 0
+        var result = 0f
+        if (polynomialDegree == 2) {
+            // The default pipeline, without the inner loop
+            val secondOffset = firstOffset + numberOfPixels
+            for (i in 0 until numberOfPixels) {
+                val x = table[pixels[pixelOffset + i].toInt() and 0xFF]
+                result += x * (theta[firstOffset + i] + x * theta[secondOffset + i])
+            }
+        } else {
+            val highestOffset = firstOffset + (polynomialDegree - 1) * numberOfPixels
+            for (i in 0 until numberOfPixels) {
+                val x = table[pixels[pixelOffset + i].toInt() and 0xFF]
+                var thetaIndex = highestOffset + i
+                var sum = theta[thetaIndex]
+                for (k in 1 until polynomialDegree) {
+                    thetaIndex -= numberOfPixels
+                    sum = theta[thetaIndex] + x * sum
+                }
+                result += x * sum
+            }
+        }
+        return if (hasBias) result + theta[0] else result
+    }
+
+    private fun accumulatePolynomialGradientSums(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                                                 residual: Float, gradientSums: FloatArray) {
+        val table = normalizedPixelTable!!
+        val firstOffset = if (hasBias) 1 else 0
+        if (hasBias) {
+            gradientSums[0] += residual
+        }
+        for (i in 0 until numberOfPixels) {
+            val x = table[pixels[pixelOffset + i].toInt() and 0xFF]
+            var feature = residual
+            var thetaIndex = firstOffset + i
+            for (k in 0 until polynomialDegree) {
+                feature *= x
+                gradientSums[thetaIndex] += feature
+                thetaIndex += numberOfPixels
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * The bias, the normalized pixels and the squared normalized pixels, in the same order as the features in [TrainData].
+         */
+        val DEFAULT = FeaturePipeline(BiasTransform, PixelPowerTransform(1), PixelPowerTransform(2))
+    }
+}
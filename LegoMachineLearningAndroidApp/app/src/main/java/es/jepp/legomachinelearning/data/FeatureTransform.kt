@@ -0,0 +1,28 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * Turns the raw 8-bit pixels of an image into a block of features.
+ * The features are never stored; the kernels evaluate them from the pixels whenever they are needed.
+ * Pixels are unsigned bytes, so 0xFF is 255.
+ */
+interface FeatureTransform {
+    fun getNumberOfFeatures(numberOfPixels: Int): Int
+
+    /**
+     * Returns the dot product of this transform's features and theta, where this transform's part of theta starts at [thetaOffset].
+     */
+    fun computeHypothesis(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                          theta: FloatArray, thetaOffset: Int): Float
+
+    /**
+     * Adds [residual] times this transform's features to [gradientSums], starting at [thetaOffset].
+     */
+    fun accumulateGradientSums(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                               residual: Float, gradientSums: FloatArray, thetaOffset: Int)
+
+    /**
+     * Writes this transform's features to [features], starting at [featureOffset].
+     */
+    fun generateFeatures(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                         features: FloatArray, featureOffset: Int)
+}
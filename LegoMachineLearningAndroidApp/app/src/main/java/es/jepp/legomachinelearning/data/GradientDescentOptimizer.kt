@@ -0,0 +1,18 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * The plain gradient descent update θ = θ - α∇J(θ) with a fixed learning rate α.
+ */
+class GradientDescentOptimizer : Optimizer {
+    private val learningRate: Float
+
+    constructor(learningRate: Float) {
+        this.learningRate = learningRate
+    }
+
+    override fun step(theta: FloatArray, gradient: FloatArray) {
+        for (j in theta.indices) {
+            theta[j] -= learningRate * gradient[j]
+        }
+    }
+}
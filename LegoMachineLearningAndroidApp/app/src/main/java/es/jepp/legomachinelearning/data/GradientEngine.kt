@@ -0,0 +1,13 @@
+package es.jepp.legomachinelearning.data
+
+interface GradientEngine {
+    /**
+     * The number of features (including the bias feature) every theta must have.
+     */
+    val numberOfFeatures: Int
+
+    /**
+     * Writes the gradient of the cost at [theta] into [gradient] and returns the cost at [theta].
+     */
+    fun computeGradientAndCost(theta: FloatArray, gradient: FloatArray): Float
+}
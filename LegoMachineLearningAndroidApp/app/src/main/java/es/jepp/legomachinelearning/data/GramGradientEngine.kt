@@ -0,0 +1,53 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * Computes the gradient and the cost from precomputed [SufficientStatistics],
+ * so each call costs O(n²) regardless of the number of samples.
+ */
+class GramGradientEngine : GradientEngine {
+    private val statistics: SufficientStatistics
+    private val XtXTheta: DoubleArray
+
+    override val numberOfFeatures: Int
+
+    constructor(statistics: SufficientStatistics) {
+        this.statistics = statistics
+        this.numberOfFeatures = statistics.numberOfFeatures
+        this.XtXTheta = DoubleArray(numberOfFeatures)
+    }
+
+    override fun computeGradientAndCost(theta: FloatArray, gradient: FloatArray): Float {
+        if (theta.size != numberOfFeatures || gradient.size != numberOfFeatures)
+            throw IllegalArgumentException("Theta and gradient must have the same length as X's element.")
+
+        val n = numberOfFeatures
+        val m = statistics.numberOfSamples
+        val XtX = statistics.XtX
+        val Xty = statistics.Xty
+
+        var thetaXty = 0.0
+        var thetaXtXTheta = 0.0
+
+        for (j in 0 until n) {
+            var sum = 0.0
+            val rowOffset = j * n
+            for (k in 0 until n) {
+                sum += XtX[rowOffset + k] * theta[k]
+            }
+            XtXTheta[j] = sum
+
+            thetaXty += theta[j] * Xty[j]
+            thetaXtXTheta += theta[j] * sum
+        }
+
+        for (j in 0 until n) {
+            gradient[j] = ((XtXTheta[j] - Xty[j]) / m).toFloat()
+        }
+
+        // yᵀy − 2θᵀXᵀy + θᵀXᵀXθ is the sum of squared residuals, which can't be negative except by rounding
+        val sumOfSquaredResiduals = Math.max(0.0, statistics.yty - 2 * thetaXty + thetaXtXTheta)
+        return (sumOfSquaredResiduals / (2 * m)).toFloat()
+    }
+}
@@ -0,0 +1,245 @@
+package es.jepp.legomachinelearning.data
+
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import java.lang.IllegalArgumentException
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * Trains one [LinearRegression] per [Candidate] concurrently on the same read-only [PixelDataset] and
+ * picks the best one with successive halving.
+ * Every round runs the remaining candidates for twice as many iterations as the round before and then
+ * drops the worse half, so most of the time is spent on the promising candidates.
+ * The rounds are sized so that the winner has run [numberOfIterations] iterations in total.
+ *
+ * The iteration handler gets the best cost after each round and the theta of the winner at the end.
+ */
+class HyperparameterSweep {
+    private val dataset: PixelDataset
+    private val featurePipeline: FeaturePipeline
+    private val augmentation: DataAugmentation?
+    private val candidates: List<Candidate>
+    private val numberOfIterations: Int
+    private val firstRoundIterations: Int
+    private val pool: ForkJoinPool
+    @Volatile
+    private var sweepIsRunning = true
+
+    private var iterationHandler: LinearRegression.LinearRegressionIterationHandler? = null
+
+    val numberOfRounds: Int
+
+    /**
+     * The results of every candidate, best first. Complete once the sweep has finished.
+     */
+    var results: List<CandidateResult> = emptyList()
+        private set
+
+    constructor(dataset: PixelDataset,
+                candidates: List<Candidate>,
+                numberOfIterations: Int,
+                numberOfThreads: Int,
+                featurePipeline: FeaturePipeline = FeaturePipeline.DEFAULT,
+                augmentation: DataAugmentation? = null) {
+        if (candidates.isEmpty())
+            throw IllegalArgumentException("There must be at least one candidate.")
+        if (numberOfThreads < 1)
+            throw IllegalArgumentException("There must be at least one thread.")
+
+        this.dataset = dataset
+        this.featurePipeline = featurePipeline
+        this.augmentation = augmentation
+        this.candidates = candidates
+
+        var rounds = 1
+        while ((1 shl (rounds - 1)) < candidates.size) {
+            rounds++
+        }
+        this.numberOfRounds = rounds
+        this.numberOfIterations = numberOfIterations
+        this.firstRoundIterations = Math.max(1, numberOfIterations / ((1 shl rounds) - 1))
+
+        // Idle workers of a ForkJoinPool terminate on their own, so the pool doesn't have to be shut down
+        this.pool = ForkJoinPool(numberOfThreads)
+    }
+
+    fun doSweep() {
+        sweepIsRunning = true
+
+        GlobalScope.launch {
+            try {
+                val best = runSweep()
+                if (best != null) {
+                    iterationHandler?.afterAllIterations(best.theta)
+                } else {
+                    iterationHandler?.trainError("The sweep was stopped before any candidate was trained.")
+                }
+            } catch (e: Exception) {
+                iterationHandler?.trainError(e.message ?: "Error when running the sweep.")
+            }
+        }.start()
+    }
+
+    /**
+     * Runs the sweep on the calling thread and returns the best result,
+     * or null if the sweep was stopped before any candidate ran an iteration.
+     * A stop ends the running round early, and the result is the best of what has run so far.
+     */
+    fun runSweep(): CandidateResult? {
+        val states = candidates.map { CandidateState(it) }
+        var remaining = states
+        var roundIterations = firstRoundIterations
+
+        for (round in 1..numberOfRounds) {
+            if (!sweepIsRunning) {
+                break
+            }
+
+            // The last round makes up for the rounding, so the winner runs exactly numberOfIterations iterations
+            if (round == numberOfRounds) {
+                roundIterations = Math.max(0, numberOfIterations - remaining[0].numberOfIterations)
+            }
+
+            val tasks = remaining.map { state ->
+                Callable<Unit> { state.runIterations(roundIterations) }
+            }
+            for (future in pool.invokeAll(tasks)) {
+                future.get()
+            }
+            if (!sweepIsRunning) {
+                break
+            }
+
+            remaining = remaining
+                .filter { it.cost.isFinite() }
+                .sortedBy { it.cost }
+            if (remaining.isEmpty()) {
+                throw Exception("Every candidate diverged. Try and decrease the learning rate.")
+            }
+
+            iterationHandler?.afterEachIteration(numberOfRounds, round, remaining[0].cost)
+
+            if (round < numberOfRounds) {
+                remaining = remaining.take((remaining.size + 1) / 2)
+                roundIterations *= 2
+            }
+        }
+
+        if (states.all { it.numberOfIterations == 0 }) {
+            return null
+        }
+
+        results = states
+            .map { it.toResult() }
+            .sortedWith(compareBy<CandidateResult> { !it.cost.isFinite() }
+                .thenByDescending { it.numberOfIterations }
+                .thenBy { it.cost })
+        return results[0]
+    }
+
+    fun stopSweep() {
+        sweepIsRunning = false
+    }
+
+    fun setIterationHandler(iterationHandler: LinearRegression.LinearRegressionIterationHandler){
+        this.iterationHandler = iterationHandler
+    }
+
+    private inner class CandidateState {
+        val candidate: Candidate
+        val theta: FloatArray
+        private val linearRegression: LinearRegression
+
+        var cost = Float.NaN
+        var numberOfIterations = 0
+        var elapsedNanos = 0L
+
+        constructor(candidate: Candidate) {
+            this.candidate = candidate
+            this.linearRegression = LinearRegression(
+                PixelGradientEngine(dataset, featurePipeline, augmentation),
+                candidate.optimizerMethod.createOptimizer(candidate.learningRate),
+                0)
+            this.theta = FloatArray(featurePipeline.getNumberOfFeatures(dataset.numberOfPixels))
+            linearRegression.setTheta(theta)
+        }
+
+        /**
+         * Runs up to [iterations] iterations, in steps of [STOP_CHECK_INTERVAL] so a stop doesn't wait for the whole round.
+         */
+        fun runIterations(iterations: Int) {
+            val startTime = System.nanoTime()
+            var completedIterations = 0
+            while (completedIterations < iterations && sweepIsRunning) {
+                val steps = Math.min(STOP_CHECK_INTERVAL, iterations - completedIterations)
+                cost = linearRegression.doGradientDescentSteps(steps)
+                completedIterations += steps
+                if (!cost.isFinite()) {
+                    break
+                }
+            }
+            elapsedNanos += System.nanoTime() - startTime
+            numberOfIterations += completedIterations
+        }
+
+        fun toResult(): CandidateResult {
+            return CandidateResult(candidate, cost, numberOfIterations, elapsedNanos / 1000000, theta)
+        }
+    }
+
+    class Candidate {
+        val optimizerMethod: OptimizerMethod
+        val learningRate: Float
+
+        constructor(optimizerMethod: OptimizerMethod, learningRate: Float) {
+            this.optimizerMethod = optimizerMethod
+            this.learningRate = learningRate
+        }
+
+        override fun toString(): String {
+            return "$optimizerMethod, learning rate $learningRate"
+        }
+    }
+
+    class CandidateResult {
+        val candidate: Candidate
+        /**
+         * The cost after the last round the candidate took part in, which is NaN or infinite if it diverged.
+         */
+        val cost: Float
+        val numberOfIterations: Int
+        val elapsedMillis: Long
+        val theta: FloatArray
+
+        constructor(candidate: Candidate, cost: Float, numberOfIterations: Int, elapsedMillis: Long, theta: FloatArray) {
+            this.candidate = candidate
+            this.cost = cost
+            this.numberOfIterations = numberOfIterations
+            this.elapsedMillis = elapsedMillis
+            this.theta = theta
+        }
+
+        override fun toString(): String {
+            return "$candidate: cost $cost after $numberOfIterations iterations in $elapsedMillis ms"
+        }
+    }
+
+    companion object {
+        // Every step computes the cost once more, so checking after every iteration would double the work
+        private const val STOP_CHECK_INTERVAL = 32
+
+        /**
+         * Creates [numberOfCandidates] learning rates spaced by a factor of 3 around [centerLearningRate].
+         */
+        fun createLearningRateCandidates(optimizerMethod: OptimizerMethod,
+                                         centerLearningRate: Float,
+                                         numberOfCandidates: Int = 8): List<Candidate> {
+            val firstExponent = -(numberOfCandidates - 1) / 2
+            return (0 until numberOfCandidates).map {
+                val learningRate = centerLearningRate * Math.pow(3.0, (firstExponent + it).toDouble()).toFloat()
+                Candidate(optimizerMethod, learningRate)
+            }
+        }
+    }
+}
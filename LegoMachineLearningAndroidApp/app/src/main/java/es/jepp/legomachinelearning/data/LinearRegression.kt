@@ -5,31 +5,49 @@ import kotlinx.coroutines.launch
 import java.lang.IllegalArgumentException
 
 class LinearRegression {
-    private val X: Array<FloatArray>
-    private val y: FloatArray
-    private val learningRate: Float
+    private val gradientEngine: GradientEngine
+    private val optimizer: Optimizer
     private val numberOfIterations: Int
     private var theta : FloatArray? = null
+    private val gradient: FloatArray
     private var gradientDescentIsRunning = true
+    private var completedIterations = 0
 
     private var iterationHandler: LinearRegressionIterationHandler? = null
+    private var checkpointHandler: CheckpointHandler? = null
+    private var checkpointInterval = 0
+    private var costReportInterval = 1
 
-    constructor(X: Array<FloatArray>, y: FloatArray, learningRate: Float, numberOfIterations: Int){
-        this.X = X
-        this.y = y
-        this.learningRate = learningRate
+    constructor(X: Array<FloatArray>, y: FloatArray, learningRate: Float, numberOfIterations: Int)
+            : this(ResidualGradientEngine(X, y), learningRate, numberOfIterations)
+
+    constructor(gradientEngine: GradientEngine, learningRate: Float, numberOfIterations: Int)
+            : this(gradientEngine, GradientDescentOptimizer(learningRate), numberOfIterations)
+
+    constructor(gradientEngine: GradientEngine, optimizer: Optimizer, numberOfIterations: Int){
+        this.gradientEngine = gradientEngine
+        this.optimizer = optimizer
         this.numberOfIterations = numberOfIterations
+        this.gradient = FloatArray(gradientEngine.numberOfFeatures)
     }
 
     fun setTheta(theta: FloatArray) {
-        if (X[0].size != theta.size)
+        if (gradientEngine.numberOfFeatures != theta.size)
             throw IllegalArgumentException("Theta must have the same length as X's element.")
 
         this.theta = theta
     }
 
     fun generateTheta() {
-        theta = FloatArray(X[0].size)
+        theta = FloatArray(gradientEngine.numberOfFeatures)
+    }
+
+    /**
+     * Continues the iteration count of a run that was resumed from a checkpoint,
+     * so only the remaining iterations up to numberOfIterations are run.
+     */
+    fun setCompletedIterations(completedIterations: Int) {
+        this.completedIterations = completedIterations
     }
 
     fun doGradientDescent() {
@@ -41,19 +59,29 @@ class LinearRegression {
         GlobalScope.launch {
             var isSuccess = false
 
-            for (iteration in 1..numberOfIterations) {
+            for (iteration in (completedIterations + 1)..numberOfIterations) {
                 if (!gradientDescentIsRunning) {
+                    // Keep the progress so the run can be resumed
+                    saveCheckpoint()
                     break
                 }
 
+                // The cost is computed in the same pass as the gradient, so it is the cost of theta before this update
+                val cost = gradientEngine.computeGradientAndCost(theta!!, gradient)
                 isSuccess = gradientDescentSingleIteration()
 
                 if (!isSuccess){
                     break;
                 }
 
-                val cost = LinearRegressionTools.computeCost(X, y, theta!!)
-                iterationHandler?.afterEachIteration(numberOfIterations, iteration, cost)
+                completedIterations = iteration
+                if (iteration % costReportInterval == 0 || iteration == numberOfIterations) {
+                    iterationHandler?.afterEachIteration(numberOfIterations, iteration, cost)
+                }
+
+                if (checkpointInterval > 0 && iteration % checkpointInterval == 0) {
+                    saveCheckpoint()
+                }
             }
 
             if (isSuccess) {
@@ -62,31 +90,44 @@ class LinearRegression {
         }.start()
     }
 
+    /**
+     * Runs [numberOfSteps] iterations on the calling thread and returns the cost of theta after them,
+     * or NaN if theta diverged. The iteration handler is only told about errors.
+     */
+    fun doGradientDescentSteps(numberOfSteps: Int): Float {
+        if (theta == null)
+            throw Exception("Theta must be set before calling doGradientDescentSteps")
+
+        for (step in 1..numberOfSteps) {
+            gradientEngine.computeGradientAndCost(theta!!, gradient)
+
+            if (!gradientDescentSingleIteration()) {
+                return Float.NaN
+            }
+        }
+
+        return gradientEngine.computeGradientAndCost(theta!!, gradient)
+    }
+
     fun stopGradientDescent() {
         gradientDescentIsRunning = false
     }
 
-    private fun gradientDescentSingleIteration(): Boolean {
-        if (X.size != y.size)
-            throw IllegalArgumentException("X and y must have the same length.");
-
-        var m = y.size;
-        var n = theta!!.size;
-
-        for (j in 0 until n) {
-            var sumResult = 0f
+    /**
+     * Hands copies of theta and the optimizer state to the checkpoint handler, which must not block the training loop.
+     */
+    private fun saveCheckpoint() {
+        checkpointHandler?.saveCheckpoint(completedIterations, theta!!.copyOf(), optimizer.saveState())
+    }
 
-            for (i in 0 until m) {
-                val h = LinearRegressionTools.computeHypothesis(X[i], theta!!)
-                sumResult += (learningRate / m) * (h - y[i]) * X[i][j]
-            }
+    private fun gradientDescentSingleIteration(): Boolean {
+        optimizer.step(theta!!, gradient)
 
-            val thetaJ = theta!![j] - sumResult.toFloat()
+        for (thetaJ in theta!!) {
             if (thetaJ.isNaN()) {
                 iterationHandler?.trainError("Error when calculating theta. Try and decrease the learning rate.")
                 return false;
             }
-            theta!![j] = thetaJ
         }
 
         return true
@@ -96,6 +137,29 @@ class LinearRegression {
         this.iterationHandler = iterationHandler
     }
 
+    /**
+     * Only reports the cost to the iteration handler every [costReportInterval] iterations and after the last one.
+     * Every gradient engine gets the cost from the same pass as the gradient, so it is the reporting that is skipped.
+     */
+    fun setCostReportInterval(costReportInterval: Int) {
+        if (costReportInterval < 1)
+            throw IllegalArgumentException("The cost report interval must be at least 1.")
+
+        this.costReportInterval = costReportInterval
+    }
+
+    /**
+     * Saves a checkpoint every [checkpointInterval] iterations and when gradient descent is stopped.
+     */
+    fun setCheckpointHandler(checkpointInterval: Int, checkpointHandler: CheckpointHandler) {
+        this.checkpointInterval = checkpointInterval
+        this.checkpointHandler = checkpointHandler
+    }
+
+    interface CheckpointHandler {
+        fun saveCheckpoint(completedIterations: Int, theta: FloatArray, optimizerState: FloatArray)
+    }
+
     interface LinearRegressionIterationHandler {
         fun afterEachIteration(totalNumberOfIterations: Int, currentIteration: Int, currentTrainCost: Float)
         fun afterAllIterations(theta: FloatArray)
@@ -20,6 +20,49 @@ object LinearRegressionTools {
         return result
     }
 
+    /**
+     * Adds the residual-weighted features of the rows [fromIndex] (inclusive) to [toIndex] (exclusive) to [gradientSums]
+     * and returns the sum of the squared residuals of those rows. Neither result is divided by the number of samples.
+     */
+    fun accumulateGradientSums(X: Array<FloatArray>, y: FloatArray, theta: FloatArray,
+                               fromIndex: Int, toIndex: Int, gradientSums: FloatArray): Double {
+        val n = theta.size
+        var sumOfSquaredResiduals = 0.0
+
+        for (i in fromIndex until toIndex) {
+            val x = X[i]
+            val residual = computeHypothesis(x, theta) - y[i]
+            sumOfSquaredResiduals += residual * residual
+
+            for (j in 0 until n) {
+                gradientSums[j] += residual * x[j]
+            }
+        }
+
+        return sumOfSquaredResiduals
+    }
+
+    /**
+     * Computes the cost of [theta] over one pass of the stream, from its first sample. Only one sample is in memory at a time.
+     */
+    fun computeCost(sampleStream: SampleStream, theta: FloatArray): Float {
+        if (sampleStream.numberOfFeatures != theta.size) {
+            throw IllegalArgumentException("x and theta must have the same length.")
+        }
+
+        val sample = Sample(theta.size)
+        var sumOfSquaredResiduals = 0.0
+        var m = 0
+        sampleStream.reset()
+        while (sampleStream.next(sample)) {
+            val residual = computeHypothesis(sample.x, theta) - sample.y
+            sumOfSquaredResiduals += residual * residual
+            m++
+        }
+
+        return (sumOfSquaredResiduals / (2 * m)).toFloat()
+    }
+
     fun computeHypothesis(x: FloatArray, theta: FloatArray): Float {
         if (x.size != theta.size) {
             throw IllegalArgumentException("x and theta must have the same length.")
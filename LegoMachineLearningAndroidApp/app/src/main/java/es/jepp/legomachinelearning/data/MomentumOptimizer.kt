@@ -0,0 +1,49 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * Gradient descent with (optionally Nesterov) momentum.
+ * The Nesterov variant uses the reformulation where theta is kept at the look-ahead position,
+ * so it only needs the gradient at theta like every other optimizer.
+ */
+class MomentumOptimizer : Optimizer {
+    private val learningRate: Float
+    private val momentum: Float
+    private val isNesterov: Boolean
+
+    private var velocity: FloatArray? = null
+
+    constructor(learningRate: Float, momentum: Float = 0.9f, isNesterov: Boolean = false) {
+        if (momentum < 0f || momentum >= 1f)
+            throw IllegalArgumentException("Momentum must be between 0 (inclusive) and 1 (exclusive).")
+
+        this.learningRate = learningRate
+        this.momentum = momentum
+        this.isNesterov = isNesterov
+    }
+
+    override fun step(theta: FloatArray, gradient: FloatArray) {
+        if (velocity == null || velocity!!.size != theta.size) {
+            velocity = FloatArray(theta.size)
+        }
+        val v = velocity!!
+
+        for (j in theta.indices) {
+            val previousVelocity = v[j]
+            v[j] = momentum * previousVelocity - learningRate * gradient[j]
+
+            if (isNesterov) {
+                theta[j] += -momentum * previousVelocity + (1 + momentum) * v[j]
+            } else {
+                theta[j] += v[j]
+            }
+        }
+    }
+
+    override fun saveState(): FloatArray {
+        return velocity?.copyOf() ?: FloatArray(0)
+    }
+
+    override fun restoreState(state: FloatArray) {
+        velocity = if (state.isEmpty()) null else state.copyOf()
+    }
+}
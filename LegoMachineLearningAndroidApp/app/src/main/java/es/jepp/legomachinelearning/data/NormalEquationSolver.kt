@@ -0,0 +1,84 @@
+package es.jepp.legomachinelearning.data
+
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import lejos.util.CholeskyDecomposition
+import lejos.util.LUDecomposition
+import lejos.util.Matrix
+
+/**
+ * Solves the normal equations (XᵀX / m + λI) θ = Xᵀy / m directly, so no learning rate or number of iterations is needed.
+ * λ is the [ridgeDamping], which is not applied to the bias feature.
+ */
+class NormalEquationSolver {
+    private val statistics: SufficientStatistics
+    private val ridgeDamping: Float
+
+    private var iterationHandler: LinearRegression.LinearRegressionIterationHandler? = null
+
+    constructor(statistics: SufficientStatistics, ridgeDamping: Float = 0f) {
+        if (ridgeDamping < 0f)
+            throw IllegalArgumentException("Ridge damping can't be negative.")
+
+        this.statistics = statistics
+        this.ridgeDamping = ridgeDamping
+    }
+
+    fun solve(): FloatArray {
+        val n = statistics.numberOfFeatures
+        val m = statistics.numberOfSamples.toDouble()
+
+        val a = Array(n) { j ->
+            DoubleArray(n) { k -> statistics.XtX[j * n + k] / m }
+        }
+        for (j in 1 until n) {
+            a[j][j] += ridgeDamping.toDouble()
+        }
+        val b = Array(n) { j -> doubleArrayOf(statistics.Xty[j] / m) }
+
+        val A = Matrix(a, n, n)
+        val B = Matrix(b, n, 1)
+
+        // Cholesky is about twice as fast as LU, but only works if the matrix is positive definite
+        val cholesky = CholeskyDecomposition(A)
+        val solution = if (cholesky.isSPD) {
+            cholesky.solve(B)
+        } else {
+            val lu = LUDecomposition(A)
+            if (!lu.isNonsingular) {
+                throw Exception("The normal equations are singular. Try and increase the ridge damping.")
+            }
+            lu.solve(B)
+        }
+
+        val theta = FloatArray(n)
+        for (j in 0 until n) {
+            theta[j] = solution.get(j, 0).toFloat()
+            if (theta[j].isNaN() || theta[j].isInfinite()) {
+                throw Exception("Error when calculating theta. Try and increase the ridge damping.")
+            }
+        }
+
+        return theta
+    }
+
+    fun doSolve() {
+        GlobalScope.launch {
+            val theta: FloatArray
+            try {
+                theta = solve()
+            } catch (e: Exception) {
+                iterationHandler?.trainError(e.message ?: "Error when solving the normal equations.")
+                return@launch
+            }
+
+            val cost = GramGradientEngine(statistics).computeGradientAndCost(theta, FloatArray(theta.size))
+            iterationHandler?.afterEachIteration(1, 1, cost)
+            iterationHandler?.afterAllIterations(theta)
+        }.start()
+    }
+
+    fun setIterationHandler(iterationHandler: LinearRegression.LinearRegressionIterationHandler){
+        this.iterationHandler = iterationHandler
+    }
+}
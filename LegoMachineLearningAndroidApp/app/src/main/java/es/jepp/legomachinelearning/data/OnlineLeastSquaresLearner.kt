@@ -0,0 +1,224 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Learns theta one sample at a time with recursive least squares, so a usable theta exists as soon as data collection stops.
+ * Every update costs O(n²) no matter how many samples have been seen, and runs on a single background thread.
+ *
+ * To stay within [frameBudgetNanos] of update time per offered frame on average, only every k-th frame is used,
+ * where k is the measured update time divided by the budget. Frames are also skipped while the background thread is behind.
+ * The update time is wall time on the background thread, so it also counts time the thread was waiting for a core.
+ * Offered frames are copied into a fixed set of buffers, so nothing is allocated per frame.
+ *
+ * With an [augmentation], every used frame is learned together with its variants, so a frame and its mirrored copy
+ * are used or skipped as a pair.
+ *
+ * P takes 8n² bytes for n features, and every update touches all of it: 2 MB for the 501 features of a default row of
+ * 250 pixels, but 30 MB for a row of 960 pixels. More than [MAX_NUMBER_OF_FEATURES] features are refused.
+ */
+class OnlineLeastSquaresLearner {
+    private val numberOfPixels: Int
+    private val featurePipeline: FeaturePipeline
+    private val augmentation: DataAugmentation?
+    private val frameBudgetNanos: Long
+    private val forgettingFactor: Double
+
+    private val numberOfFeatures: Int
+    private val theta: DoubleArray
+    private val P: DoubleArray
+    private val x: FloatArray
+    private val Px: DoubleArray
+    private val variantPixels: ByteArray?
+
+    private val executor: ExecutorService
+    private val numberOfPendingFrames = AtomicInteger(0)
+
+    // One buffer per frame that can be pending. The frames are learned in the order they are offered,
+    // so a buffer is free again once the frames offered after it are all that is pending
+    private val pendingPixels: Array<ByteArray>
+    private val pendingY: FloatArray
+    private var nextOfferedBuffer = 0
+    private var nextLearnedBuffer = 0
+    private val learnNextFrameTask = Runnable { learnNextFrame() }
+
+    @Volatile private var frameStride = 1
+    private var numberOfOfferedFrames = 0L
+    private var numberOfLearnedFrames = 0L
+
+    /**
+     * The learned samples, which are the used frames times the number of variants.
+     */
+    @Volatile var numberOfSamples = 0L
+        private set
+    @Volatile var numberOfSkippedFrames = 0L
+        private set
+
+    /**
+     * The wall time the background thread spent learning the used frames and their variants.
+     */
+    @Volatile var totalUpdateNanos = 0L
+        private set
+
+    /**
+     * @param initialCovariance How much theta may move away from zero at first. Smaller values act like a stronger ridge damping.
+     * @param forgettingFactor Values below 1 weigh recent samples more, so theta can follow a changing track.
+     */
+    constructor(numberOfPixels: Int,
+                frameBudgetNanos: Long,
+                featurePipeline: FeaturePipeline = FeaturePipeline.DEFAULT,
+                augmentation: DataAugmentation? = null,
+                initialCovariance: Double = 100.0,
+                forgettingFactor: Double = 1.0) {
+        if (frameBudgetNanos <= 0)
+            throw IllegalArgumentException("The frame budget must be positive.")
+        if (initialCovariance <= 0.0 || forgettingFactor <= 0.0 || forgettingFactor > 1.0)
+            throw IllegalArgumentException("The initial covariance must be positive and the forgetting factor in (0, 1].")
+        if (featurePipeline.getNumberOfFeatures(numberOfPixels) > MAX_NUMBER_OF_FEATURES)
+            throw IllegalArgumentException("Online training supports at most $MAX_NUMBER_OF_FEATURES features.")
+        if (augmentation != null && augmentation.imageWidth * augmentation.imageHeight != numberOfPixels)
+            throw IllegalArgumentException("The augmentation must have the size of the frames.")
+
+        this.numberOfPixels = numberOfPixels
+        this.featurePipeline = featurePipeline
+        this.augmentation = augmentation
+        this.frameBudgetNanos = frameBudgetNanos
+        this.forgettingFactor = forgettingFactor
+
+        numberOfFeatures = featurePipeline.getNumberOfFeatures(numberOfPixels)
+        theta = DoubleArray(numberOfFeatures)
+        P = DoubleArray(numberOfFeatures * numberOfFeatures)
+        for (j in 0 until numberOfFeatures) {
+            P[j * numberOfFeatures + j] = initialCovariance
+        }
+        x = FloatArray(numberOfFeatures)
+        Px = DoubleArray(numberOfFeatures)
+        variantPixels = if (augmentation == null) null else ByteArray(numberOfPixels)
+        pendingPixels = Array(MAX_PENDING_FRAMES) { ByteArray(numberOfPixels) }
+        pendingY = FloatArray(MAX_PENDING_FRAMES)
+
+        executor = Executors.newSingleThreadExecutor()
+    }
+
+    /**
+     * Offers a frame with its steering angle in percent, as written to the data file. Returns false if the frame was skipped.
+     * Must be called from one thread only.
+     */
+    fun offerFrame(grayscalePixels: IntArray, steeringAngle: Float): Boolean {
+        if (grayscalePixels.size != numberOfPixels)
+            throw IllegalArgumentException("All frames must have the same number of pixels.")
+
+        numberOfOfferedFrames++
+        if (numberOfOfferedFrames % frameStride != 0L || numberOfPendingFrames.get() >= MAX_PENDING_FRAMES) {
+            numberOfSkippedFrames++
+            return false
+        }
+
+        val buffer = nextOfferedBuffer
+        nextOfferedBuffer = (buffer + 1) % MAX_PENDING_FRAMES
+        CsvToDataConverter.convertGrayscalePixelsToBytes(grayscalePixels, pendingPixels[buffer])
+        pendingY[buffer] = (steeringAngle - 50) / 50
+
+        numberOfPendingFrames.incrementAndGet()
+        executor.execute(learnNextFrameTask)
+
+        return true
+    }
+
+    /**
+     * The average update wall time per offered frame, which stays close to or below the frame budget.
+     */
+    fun getAverageWallNanosPerFrame(): Long {
+        if (numberOfOfferedFrames == 0L) {
+            return 0
+        }
+        return totalUpdateNanos / numberOfOfferedFrames
+    }
+
+    @Synchronized
+    fun getTheta(): FloatArray {
+        return FloatArray(numberOfFeatures) { theta[it].toFloat() }
+    }
+
+    /**
+     * Stops the background thread after the frames that are already offered have been learned, and returns the final theta.
+     */
+    fun finish(): FloatArray {
+        executor.shutdown()
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+        return getTheta()
+    }
+
+    private fun learnNextFrame() {
+        val buffer = nextLearnedBuffer
+        nextLearnedBuffer = (buffer + 1) % MAX_PENDING_FRAMES
+
+        val startTime = System.nanoTime()
+        if (augmentation == null) {
+            addSample(pendingPixels[buffer], pendingY[buffer])
+        } else {
+            for (variant in 0 until augmentation.numberOfVariants) {
+                var pixels = pendingPixels[buffer]
+                if (!augmentation.isOriginal(variant)) {
+                    augmentation.generateVariant(pixels, 0, variant, variantPixels!!)
+                    pixels = variantPixels
+                }
+                addSample(pixels, augmentation.getLabel(pendingY[buffer], variant))
+            }
+        }
+        val updateNanos = System.nanoTime() - startTime
+
+        numberOfLearnedFrames++
+        totalUpdateNanos += updateNanos
+        frameStride = Math.max(1L, (totalUpdateNanos / numberOfLearnedFrames + frameBudgetNanos - 1) / frameBudgetNanos).toInt()
+        numberOfPendingFrames.decrementAndGet()
+        // Counted last, so a learned frame is only visible once the stride and the pending count include it
+        numberOfSamples += augmentation?.numberOfVariants ?: 1
+    }
+
+    @Synchronized
+    private fun addSample(pixels: ByteArray, y: Float) {
+        val n = numberOfFeatures
+        featurePipeline.generateFeatures(pixels, 0, numberOfPixels, x)
+
+        // Px = P x, and the prediction error with the current theta
+        var error = y.toDouble()
+        var xPx = 0.0
+        for (j in 0 until n) {
+            val rowOffset = j * n
+            var sum = 0.0
+            for (k in 0 until n) {
+                sum += P[rowOffset + k] * x[k]
+            }
+            Px[j] = sum
+            xPx += x[j] * sum
+            error -= theta[j] * x[j]
+        }
+
+        // The gain is Px / (λ + xᵀPx). P stays symmetric, so Pᵀx = Px
+        val denominator = forgettingFactor + xPx
+        for (j in 0 until n) {
+            theta[j] += Px[j] / denominator * error
+        }
+
+        for (j in 0 until n) {
+            val gainJ = Px[j] / denominator
+            val rowOffset = j * n
+            for (k in 0 until n) {
+                P[rowOffset + k] = (P[rowOffset + k] - gainJ * Px[k]) / forgettingFactor
+            }
+        }
+    }
+
+    companion object {
+        // A row of 1024 pixels, where P takes 34 MB
+        const val MAX_NUMBER_OF_FEATURES = 2049
+
+        // One frame that is being learned and the next one
+        private const val MAX_PENDING_FRAMES = 2
+    }
+}
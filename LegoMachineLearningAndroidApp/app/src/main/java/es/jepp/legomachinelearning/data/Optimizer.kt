@@ -0,0 +1,21 @@
+package es.jepp.legomachinelearning.data
+
+interface Optimizer {
+    /**
+     * Updates [theta] in place using the [gradient] of the cost at [theta].
+     */
+    fun step(theta: FloatArray, gradient: FloatArray)
+
+    /**
+     * Returns a copy of everything the optimizer remembers between steps, so training can be resumed from a checkpoint.
+     */
+    fun saveState(): FloatArray {
+        return FloatArray(0)
+    }
+
+    /**
+     * Restores a state returned by [saveState] of an optimizer of the same type.
+     */
+    fun restoreState(state: FloatArray) {
+    }
+}
@@ -0,0 +1,23 @@
+package es.jepp.legomachinelearning.data
+
+enum class OptimizerMethod(private val displayName: String) {
+    GRADIENT_DESCENT("Fixed learning rate"),
+    MOMENTUM("Momentum"),
+    NESTEROV("Nesterov momentum"),
+    ADAM("Adam"),
+    BARZILAI_BORWEIN("Barzilai-Borwein step size");
+
+    fun createOptimizer(learningRate: Float): Optimizer {
+        return when (this) {
+            GRADIENT_DESCENT -> GradientDescentOptimizer(learningRate)
+            MOMENTUM -> MomentumOptimizer(learningRate)
+            NESTEROV -> MomentumOptimizer(learningRate, isNesterov = true)
+            ADAM -> AdamOptimizer(learningRate)
+            BARZILAI_BORWEIN -> BarzilaiBorweinOptimizer(learningRate)
+        }
+    }
+
+    override fun toString(): String {
+        return displayName
+    }
+}
@@ -0,0 +1,109 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * Computes the gradient and the cost by splitting the rows of X into shards that are processed concurrently.
+ * The partial results are always added together in shard order, so for a given [numberOfShards]
+ * the result is the same on every run no matter how many threads are used.
+ */
+class ParallelGradientEngine : GradientEngine {
+    private val numberOfSamples: Int
+    private val numberOfVariants: Int
+    private val accumulateGradientSums: (theta: FloatArray, fromIndex: Int, toIndex: Int, gradientSums: FloatArray, scratch: ByteArray) -> Double
+    private val pool: ForkJoinPool
+    private val shardStartIndices: IntArray
+    private val shardGradientSums: Array<FloatArray>
+    private val shardScratches: Array<ByteArray>
+
+    override val numberOfFeatures: Int
+
+    constructor(X: Array<FloatArray>, y: FloatArray, numberOfThreads: Int, numberOfShards: Int = numberOfThreads)
+            : this(X.size, if (X.isEmpty()) 0 else X[0].size, numberOfThreads, numberOfShards, 1, 0,
+                   { theta, fromIndex, toIndex, gradientSums, _ ->
+                       LinearRegressionTools.accumulateGradientSums(X, y, theta, fromIndex, toIndex, gradientSums)
+                   }) {
+        if (X.size != y.size)
+            throw IllegalArgumentException("X and y must have the same length.")
+    }
+
+    constructor(dataset: PixelDataset,
+                featurePipeline: FeaturePipeline,
+                numberOfThreads: Int,
+                numberOfShards: Int = numberOfThreads,
+                augmentation: DataAugmentation? = null)
+            : this(dataset.numberOfSamples, featurePipeline.getNumberOfFeatures(dataset.numberOfPixels),
+                   numberOfThreads, numberOfShards, augmentation?.numberOfVariants ?: 1,
+                   if (augmentation == null) 0 else dataset.numberOfPixels,
+                   { theta, fromIndex, toIndex, gradientSums, variantPixels ->
+                       featurePipeline.accumulateGradientSums(dataset, theta, fromIndex, toIndex, gradientSums, augmentation, variantPixels)
+                   })
+
+    private constructor(numberOfSamples: Int,
+                        numberOfFeatures: Int,
+                        numberOfThreads: Int,
+                        numberOfShards: Int,
+                        numberOfVariants: Int,
+                        scratchSize: Int,
+                        accumulateGradientSums: (FloatArray, Int, Int, FloatArray, ByteArray) -> Double) {
+        if (numberOfSamples == 0)
+            throw IllegalArgumentException("X must contain at least one element.")
+        if (numberOfThreads < 1 || numberOfShards < 1)
+            throw IllegalArgumentException("There must be at least one thread and one shard.")
+
+        this.numberOfSamples = numberOfSamples
+        this.numberOfVariants = numberOfVariants
+        this.numberOfFeatures = numberOfFeatures
+        this.accumulateGradientSums = accumulateGradientSums
+
+        // Every engine has its own workers, so the owner must call shutdown when training ends
+        this.pool = ForkJoinPool(numberOfThreads)
+
+        val shards = Math.min(numberOfShards, numberOfSamples)
+        this.shardStartIndices = IntArray(shards + 1) { (it.toLong() * numberOfSamples / shards).toInt() }
+        this.shardGradientSums = Array(shards) { FloatArray(numberOfFeatures) }
+        // Each shard gets its own scratch space, so nothing is allocated per iteration
+        this.shardScratches = Array(shards) { ByteArray(scratchSize) }
+    }
+
+    override fun computeGradientAndCost(theta: FloatArray, gradient: FloatArray): Float {
+        if (theta.size != numberOfFeatures || gradient.size != numberOfFeatures)
+            throw IllegalArgumentException("Theta and gradient must have the same length as X's element.")
+
+        val tasks = shardGradientSums.indices.map { shard ->
+            Callable<Double> {
+                val gradientSums = shardGradientSums[shard]
+                gradientSums.fill(0f)
+                accumulateGradientSums(theta, shardStartIndices[shard], shardStartIndices[shard + 1], gradientSums, shardScratches[shard])
+            }
+        }
+        val futures = pool.invokeAll(tasks)
+
+        gradient.fill(0f)
+        var sumOfSquaredResiduals = 0.0
+        for (shard in futures.indices) {
+            sumOfSquaredResiduals += futures[shard].get()
+
+            val gradientSums = shardGradientSums[shard]
+            for (j in 0 until numberOfFeatures) {
+                gradient[j] += gradientSums[j]
+            }
+        }
+
+        val m = numberOfSamples * numberOfVariants
+        for (j in 0 until numberOfFeatures) {
+            gradient[j] = gradient[j] / m
+        }
+
+        return (sumOfSquaredResiduals / (2 * m)).toFloat()
+    }
+
+    /**
+     * Stops the worker threads. The engine can't compute gradients afterwards.
+     */
+    fun shutdown() {
+        pool.shutdown()
+    }
+}
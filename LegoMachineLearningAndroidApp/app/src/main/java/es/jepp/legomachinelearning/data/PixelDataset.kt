@@ -0,0 +1,29 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * A dataset that stores the raw grayscale pixels with one byte per pixel, back to back in one array.
+ * The features are computed from the pixels by a [FeaturePipeline] when training.
+ *
+ * This is the contiguous, row-major storage the gradient engines train on. Sample i starts at i * [numberOfPixels].
+ * Storing the expanded float features instead would take 8 times the memory of the pixels.
+ */
+class PixelDataset {
+    val numberOfSamples: Int
+    val numberOfPixels: Int
+    val pixels: ByteArray
+    val y: FloatArray
+
+    constructor(numberOfSamples: Int, numberOfPixels: Int, pixels: ByteArray, y: FloatArray) {
+        if (pixels.size != numberOfSamples * numberOfPixels)
+            throw IllegalArgumentException("pixels must contain numberOfSamples * numberOfPixels elements.")
+        if (y.size != numberOfSamples)
+            throw IllegalArgumentException("X and y must have the same length.")
+
+        this.numberOfSamples = numberOfSamples
+        this.numberOfPixels = numberOfPixels
+        this.pixels = pixels
+        this.y = y
+    }
+}
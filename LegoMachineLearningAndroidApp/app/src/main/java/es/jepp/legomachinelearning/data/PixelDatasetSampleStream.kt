@@ -0,0 +1,33 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * Streams the samples of a [PixelDataset], generating the features of each one with the [featurePipeline] when it is read.
+ */
+class PixelDatasetSampleStream : SampleStream {
+    private val dataset: PixelDataset
+    private val featurePipeline: FeaturePipeline
+    private var index = 0
+
+    override val numberOfFeatures: Int
+
+    constructor(dataset: PixelDataset, featurePipeline: FeaturePipeline = FeaturePipeline.DEFAULT) {
+        this.dataset = dataset
+        this.featurePipeline = featurePipeline
+        this.numberOfFeatures = featurePipeline.getNumberOfFeatures(dataset.numberOfPixels)
+    }
+
+    override fun next(sample: Sample): Boolean {
+        if (index == dataset.numberOfSamples) {
+            return false
+        }
+
+        featurePipeline.generateFeatures(dataset.pixels, index * dataset.numberOfPixels, dataset.numberOfPixels, sample.x)
+        sample.y = dataset.y[index]
+        index++
+        return true
+    }
+
+    override fun reset() {
+        index = 0
+    }
+}
@@ -0,0 +1,49 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * Computes the gradient and the cost in a single pass over a [PixelDataset],
+ * evaluating the features of the [featurePipeline] on the fly instead of reading them from memory.
+ * The variants of an [augmentation] are generated on the fly as well, into scratch space the engine keeps,
+ * so an engine must not be used by two threads at once.
+ */
+class PixelGradientEngine : GradientEngine {
+    private val dataset: PixelDataset
+    private val featurePipeline: FeaturePipeline
+    private val augmentation: DataAugmentation?
+    private val variantPixels: ByteArray?
+
+    override val numberOfFeatures: Int
+
+    constructor(dataset: PixelDataset,
+                featurePipeline: FeaturePipeline = FeaturePipeline.DEFAULT,
+                augmentation: DataAugmentation? = null) {
+        if (dataset.numberOfSamples == 0)
+            throw IllegalArgumentException("X must contain at least one element.")
+
+        this.dataset = dataset
+        this.featurePipeline = featurePipeline
+        this.augmentation = augmentation
+        this.variantPixels = if (augmentation == null) null else ByteArray(dataset.numberOfPixels)
+        this.numberOfFeatures = featurePipeline.getNumberOfFeatures(dataset.numberOfPixels)
+    }
+
+    override fun computeGradientAndCost(theta: FloatArray, gradient: FloatArray): Float {
+        if (theta.size != numberOfFeatures || gradient.size != numberOfFeatures)
+            throw IllegalArgumentException("Theta and gradient must have the same length as X's element.")
+
+        gradient.fill(0f)
+
+        val sumOfSquaredResiduals = featurePipeline.accumulateGradientSums(
+            dataset, theta, 0, dataset.numberOfSamples, gradient, augmentation, variantPixels)
+
+        val m = dataset.numberOfSamples * (augmentation?.numberOfVariants ?: 1)
+
+        for (j in 0 until numberOfFeatures) {
+            gradient[j] = gradient[j] / m
+        }
+
+        return (sumOfSquaredResiduals / (2 * m)).toFloat()
+    }
+}
@@ -0,0 +1,59 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * One feature per pixel: the normalized pixel value (1 - pixel / 255) raised to [power].
+ * Power 1 is the plain normalized pixel, power 2 the squared pixel and so on.
+ * All 256 possible values are computed up front, so evaluating a feature is a table lookup.
+ */
+class PixelPowerTransform : FeatureTransform {
+    val power: Int
+    private val valueTable: FloatArray
+
+    constructor(power: Int) {
+        if (power < 1)
+            throw IllegalArgumentException("The power must be at least 1.")
+
+        this.power = power
+        this.valueTable = FloatArray(256) {
+            val normalizedPixel = 1f - it / 255f // make sure the pixel value is normalized to be between 0 and 1
+            var value = normalizedPixel
+            for (i in 2..power) {
+                value *= normalizedPixel
+            }
+            value
+        }
+    }
+
+    fun copyValueTable(): FloatArray {
+        return valueTable.copyOf()
+    }
+
+    override fun getNumberOfFeatures(numberOfPixels: Int): Int {
+        return numberOfPixels
+    }
+
+    override fun computeHypothesis(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                                   theta: FloatArray, thetaOffset: Int): Float {
+        var result = 0f
+        for (i in 0 until numberOfPixels) {
+            result += theta[thetaOffset + i] * valueTable[pixels[pixelOffset + i].toInt() and 0xFF]
+        }
+        return result
+    }
+
+    override fun accumulateGradientSums(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                                        residual: Float, gradientSums: FloatArray, thetaOffset: Int) {
+        for (i in 0 until numberOfPixels) {
+            gradientSums[thetaOffset + i] += residual * valueTable[pixels[pixelOffset + i].toInt() and 0xFF]
+        }
+    }
+
+    override fun generateFeatures(pixels: ByteArray, pixelOffset: Int, numberOfPixels: Int,
+                                  features: FloatArray, featureOffset: Int) {
+        for (i in 0 until numberOfPixels) {
+            features[featureOffset + i] = valueTable[pixels[pixelOffset + i].toInt() and 0xFF]
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Reads up to [capacity] samples ahead of the caller on a background thread, so reading the source overlaps with the training.
+ * The samples are recycled, so no sample is allocated after construction.
+ * An error in the source is thrown from [next] once the samples before it have been read.
+ */
+class PrefetchingSampleStream : SampleStream {
+    private val source: SampleStream
+    private val emptySamples: ArrayBlockingQueue<Sample>
+    private val filledSamples: ArrayBlockingQueue<Sample>
+    private val endOfStream = Sample(0)
+
+    private var thread: Thread? = null
+    @Volatile private var isStopped = false
+    @Volatile private var sourceError: Exception? = null
+    private var isEnded = false
+
+    override val numberOfFeatures: Int
+        get() = source.numberOfFeatures
+
+    constructor(source: SampleStream, capacity: Int = 256) {
+        if (capacity < 1)
+            throw IllegalArgumentException("At least one sample must be read ahead.")
+
+        this.source = source
+        this.emptySamples = ArrayBlockingQueue(capacity)
+        this.filledSamples = ArrayBlockingQueue(capacity + 1)
+        for (i in 0 until capacity) {
+            emptySamples.add(Sample(source.numberOfFeatures))
+        }
+    }
+
+    override fun next(sample: Sample): Boolean {
+        if (isEnded) {
+            return false
+        }
+        if (thread == null) {
+            startThread()
+        }
+
+        val filled = filledSamples.take()
+        if (filled === endOfStream) {
+            isEnded = true
+            val error = sourceError
+            if (error != null) {
+                throw error
+            }
+            return false
+        }
+
+        sample.copyFrom(filled)
+        emptySamples.put(filled)
+        return true
+    }
+
+    override fun reset() {
+        stopThread()
+        source.reset()
+        isEnded = false
+        sourceError = null
+    }
+
+    override fun close() {
+        stopThread()
+        source.close()
+    }
+
+    private fun startThread() {
+        isStopped = false
+        val readThread = Thread({ readAhead() }, "PrefetchingSampleStream")
+        readThread.isDaemon = true
+        readThread.start()
+        thread = readThread
+    }
+
+    private fun stopThread() {
+        val readThread = thread ?: return
+        isStopped = true
+        readThread.join()
+        thread = null
+
+        while (true) {
+            val filled = filledSamples.poll() ?: break
+            if (filled !== endOfStream) {
+                emptySamples.add(filled)
+            }
+        }
+    }
+
+    private fun readAhead() {
+        try {
+            while (!isStopped) {
+                // Polling with a timeout lets the thread notice a stop without being interrupted in the middle of a read
+                val sample = emptySamples.poll(10, TimeUnit.MILLISECONDS) ?: continue
+                var isFilled = false
+                try {
+                    isFilled = source.next(sample)
+                } finally {
+                    // A sample the source failed to fill goes back as well, so a reset starts with every sample
+                    if (isFilled) {
+                        filledSamples.add(sample)
+                    } else {
+                        emptySamples.add(sample)
+                    }
+                }
+                if (!isFilled) {
+                    break
+                }
+            }
+        } catch (e: Exception) {
+            sourceError = e
+        }
+
+        if (!isStopped) {
+            filledSamples.add(endOfStream)
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * Computes the gradient and the cost in a single pass over the data.
+ * The residual h(x) - y is computed once per sample and then used for both the cost and every theta index.
+ */
+class ResidualGradientEngine : GradientEngine {
+    private val X: Array<FloatArray>
+    private val y: FloatArray
+
+    override val numberOfFeatures: Int
+
+    constructor(X: Array<FloatArray>, y: FloatArray) {
+        if (X.size != y.size)
+            throw IllegalArgumentException("X and y must have the same length.")
+        if (X.isEmpty())
+            throw IllegalArgumentException("X must contain at least one element.")
+
+        this.X = X
+        this.y = y
+        this.numberOfFeatures = X[0].size
+    }
+
+    override fun computeGradientAndCost(theta: FloatArray, gradient: FloatArray): Float {
+        if (theta.size != numberOfFeatures || gradient.size != numberOfFeatures)
+            throw IllegalArgumentException("Theta and gradient must have the same length as X's element.")
+
+        gradient.fill(0f)
+
+        val m = y.size
+        val n = numberOfFeatures
+        val sumOfSquaredResiduals = LinearRegressionTools.accumulateGradientSums(X, y, theta, 0, m, gradient)
+
+        for (j in 0 until n) {
+            gradient[j] = gradient[j] / m
+        }
+
+        return (sumOfSquaredResiduals / (2 * m)).toFloat()
+    }
+}
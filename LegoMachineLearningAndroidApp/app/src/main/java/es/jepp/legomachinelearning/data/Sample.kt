@@ -0,0 +1,18 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * The features and the label of one sample, reused from sample to sample by a [SampleStream].
+ */
+class Sample {
+    val x: FloatArray
+    var y = 0f
+
+    constructor(numberOfFeatures: Int) {
+        this.x = FloatArray(numberOfFeatures)
+    }
+
+    fun copyFrom(other: Sample) {
+        System.arraycopy(other.x, 0, x, 0, x.size)
+        y = other.y
+    }
+}
@@ -0,0 +1,30 @@
+package es.jepp.legomachinelearning.data
+
+import java.io.Closeable
+
+/**
+ * A dataset that is read one sample at a time, so it never has to fit in memory as a whole.
+ * The caller passes in the [Sample] to fill, so reading a sample doesn't allocate.
+ *
+ * Sources read [TrainData], a [PixelDataset], the CSV data file or the binary data file.
+ * Streams can be wrapped to shuffle ([ShuffledSampleStream]), shard ([ShardedSampleStream]) and read ahead ([PrefetchingSampleStream]).
+ */
+interface SampleStream : Closeable {
+    /**
+     * The number of features (including the bias feature) of every sample.
+     */
+    val numberOfFeatures: Int
+
+    /**
+     * Writes the next sample to [sample] and returns false at the end of the stream.
+     */
+    fun next(sample: Sample): Boolean
+
+    /**
+     * Starts the stream over from its first sample.
+     */
+    fun reset()
+
+    override fun close() {
+    }
+}
@@ -0,0 +1,49 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * Streams every [numberOfShards]-th sample of a stream, starting with sample [shardIndex],
+ * so several workers can each take a disjoint part of the same data. The skipped samples are still read from the source.
+ */
+class ShardedSampleStream : SampleStream {
+    private val source: SampleStream
+    private val shardIndex: Int
+    private val numberOfShards: Int
+    private val skipped: Sample
+    private var isFirst = true
+
+    override val numberOfFeatures: Int
+        get() = source.numberOfFeatures
+
+    constructor(source: SampleStream, shardIndex: Int, numberOfShards: Int) {
+        if (numberOfShards < 1 || shardIndex < 0 || shardIndex >= numberOfShards)
+            throw IllegalArgumentException("The shard index must be between 0 and the number of shards.")
+
+        this.source = source
+        this.shardIndex = shardIndex
+        this.numberOfShards = numberOfShards
+        this.skipped = Sample(source.numberOfFeatures)
+    }
+
+    override fun next(sample: Sample): Boolean {
+        val numberToSkip = if (isFirst) shardIndex else numberOfShards - 1
+        isFirst = false
+
+        for (i in 0 until numberToSkip) {
+            if (!source.next(skipped)) {
+                return false
+            }
+        }
+        return source.next(sample)
+    }
+
+    override fun reset() {
+        source.reset()
+        isFirst = true
+    }
+
+    override fun close() {
+        source.close()
+    }
+}
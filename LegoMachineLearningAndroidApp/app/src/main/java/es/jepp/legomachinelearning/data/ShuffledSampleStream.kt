@@ -0,0 +1,76 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+import java.util.Random
+
+/**
+ * Shuffles a stream by passing its samples through a reservoir of [reservoirSize] samples,
+ * so the order is random within a window while only the reservoir is kept in memory.
+ * Every pass after a [reset] gets a new order from the same random sequence.
+ */
+class ShuffledSampleStream : SampleStream {
+    private val source: SampleStream
+    private val random: Random
+    private val reservoir: Array<Sample>
+    private var incoming: Sample
+    private var reservoirCount = 0
+    private var sourceIsEnded = false
+
+    override val numberOfFeatures: Int
+        get() = source.numberOfFeatures
+
+    constructor(source: SampleStream, reservoirSize: Int = 1024, seed: Long = 0L) {
+        if (reservoirSize < 1)
+            throw IllegalArgumentException("The reservoir must hold at least one sample.")
+
+        this.source = source
+        this.random = Random(seed)
+        this.reservoir = Array(reservoirSize) { Sample(source.numberOfFeatures) }
+        this.incoming = Sample(source.numberOfFeatures)
+    }
+
+    override fun next(sample: Sample): Boolean {
+        while (!sourceIsEnded && reservoirCount < reservoir.size) {
+            if (source.next(reservoir[reservoirCount])) {
+                reservoirCount++
+            } else {
+                sourceIsEnded = true
+            }
+        }
+
+        if (!sourceIsEnded) {
+            if (source.next(incoming)) {
+                // Emit a random sample from the full reservoir and put the new sample in its place
+                val slot = random.nextInt(reservoir.size)
+                sample.copyFrom(reservoir[slot])
+                val emitted = reservoir[slot]
+                reservoir[slot] = incoming
+                incoming = emitted
+                return true
+            }
+            sourceIsEnded = true
+        }
+
+        // Drain what is left in the reservoir in random order
+        if (reservoirCount == 0) {
+            return false
+        }
+        val slot = random.nextInt(reservoirCount)
+        sample.copyFrom(reservoir[slot])
+        reservoirCount--
+        val last = reservoir[reservoirCount]
+        reservoir[reservoirCount] = reservoir[slot]
+        reservoir[slot] = last
+        return true
+    }
+
+    override fun reset() {
+        source.reset()
+        reservoirCount = 0
+        sourceIsEnded = false
+    }
+
+    override fun close() {
+        source.close()
+    }
+}
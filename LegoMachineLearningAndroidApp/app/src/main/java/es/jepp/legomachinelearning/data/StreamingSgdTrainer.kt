@@ -0,0 +1,159 @@
+package es.jepp.legomachinelearning.data
+
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import java.io.File
+import java.lang.IllegalArgumentException
+
+/**
+ * Trains with mini-batch stochastic gradient descent while reading the samples from a [SampleStream],
+ * so only the batch and whatever the stream buffers are kept in memory no matter how large the dataset is.
+ * The cost reported for an epoch is the mean cost of each batch just before theta was updated with it.
+ */
+class StreamingSgdTrainer {
+    private val sampleStream: SampleStream
+    private val learningRate: Float
+    private val numberOfEpochs: Int
+    private val batchSize: Int
+    private val numberOfFeatures: Int
+
+    private var theta: FloatArray? = null
+    private var trainingIsRunning = true
+
+    private var iterationHandler: LinearRegression.LinearRegressionIterationHandler? = null
+
+    private val batch: Array<Sample>
+    private val batchX: Array<FloatArray>
+    private val batchY: FloatArray
+    private val gradient: FloatArray
+
+    private var batchCount = 0
+    private var epochSumOfSquaredResiduals = 0.0
+    private var epochNumberOfSamples = 0
+
+    constructor(sampleStream: SampleStream, learningRate: Float, numberOfEpochs: Int, batchSize: Int = 32) {
+        if (batchSize < 1)
+            throw IllegalArgumentException("The batch must hold at least one sample.")
+
+        this.sampleStream = sampleStream
+        this.learningRate = learningRate
+        this.numberOfEpochs = numberOfEpochs
+        this.batchSize = batchSize
+        this.numberOfFeatures = sampleStream.numberOfFeatures
+
+        batch = Array(batchSize) { Sample(numberOfFeatures) }
+        batchX = Array(batchSize) { batch[it].x }
+        batchY = FloatArray(batchSize)
+        gradient = FloatArray(numberOfFeatures)
+    }
+
+    /**
+     * Reads the data file while training, shuffled through a reservoir of [reservoirSize] samples and parsed ahead on another thread.
+     */
+    constructor(datafile: File,
+                learningRate: Float,
+                numberOfEpochs: Int,
+                batchSize: Int = 32,
+                reservoirSize: Int = 1024,
+                seed: Long = 0L)
+            : this(PrefetchingSampleStream(ShuffledSampleStream(CsvSampleStream(datafile), reservoirSize, seed)),
+                   learningRate, numberOfEpochs, batchSize)
+
+    fun setTheta(theta: FloatArray) {
+        if (numberOfFeatures != theta.size)
+            throw IllegalArgumentException("Theta must have the same length as X's element.")
+
+        this.theta = theta
+    }
+
+    fun generateTheta() {
+        theta = FloatArray(numberOfFeatures)
+    }
+
+    fun doTraining() {
+        if (theta == null)
+            throw Exception("Theta must be set before calling doTraining")
+
+        trainingIsRunning = true
+
+        GlobalScope.launch {
+            var isSuccess = false
+
+            try {
+                for (epoch in 1..numberOfEpochs) {
+                    if (!trainingIsRunning) {
+                        break
+                    }
+
+                    isSuccess = trainSingleEpoch()
+
+                    if (!isSuccess) {
+                        break
+                    }
+
+                    val cost = (epochSumOfSquaredResiduals / (2 * epochNumberOfSamples)).toFloat()
+                    iterationHandler?.afterEachIteration(numberOfEpochs, epoch, cost)
+                }
+            } catch (e: Exception) {
+                iterationHandler?.trainError(e.message ?: "Error when reading the data file.")
+                isSuccess = false
+            }
+
+            sampleStream.close()
+
+            if (isSuccess) {
+                iterationHandler?.afterAllIterations(theta!!)
+            }
+        }.start()
+    }
+
+    fun stopTraining() {
+        trainingIsRunning = false
+    }
+
+    private fun trainSingleEpoch(): Boolean {
+        batchCount = 0
+        epochSumOfSquaredResiduals = 0.0
+        epochNumberOfSamples = 0
+
+        sampleStream.reset()
+        while (trainingIsRunning && sampleStream.next(batch[batchCount])) {
+            batchY[batchCount] = batch[batchCount].y
+            batchCount++
+
+            if (batchCount == batchSize && !updateThetaFromBatch()) {
+                return false
+            }
+        }
+
+        if (batchCount > 0) {
+            return updateThetaFromBatch()
+        }
+
+        return true
+    }
+
+    private fun updateThetaFromBatch(): Boolean {
+        gradient.fill(0f)
+        val sumOfSquaredResiduals =
+            LinearRegressionTools.accumulateGradientSums(batchX, batchY, theta!!, 0, batchCount, gradient)
+        epochSumOfSquaredResiduals += sumOfSquaredResiduals
+        epochNumberOfSamples += batchCount
+
+        for (j in 0 until numberOfFeatures) {
+            val thetaJ = theta!![j] - learningRate * gradient[j] / batchCount
+            if (thetaJ.isNaN()) {
+                iterationHandler?.trainError("Error when calculating theta. Try and decrease the learning rate.")
+                return false
+            }
+            theta!![j] = thetaJ
+        }
+
+        batchCount = 0
+        return true
+    }
+
+    fun setIterationHandler(iterationHandler: LinearRegression.LinearRegressionIterationHandler){
+        this.iterationHandler = iterationHandler
+    }
+}
@@ -0,0 +1,119 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * The sufficient statistics of a least squares problem: XᵀX, Xᵀy, yᵀy and the number of samples.
+ * XᵀX is stored row-major in a single array of size n * n.
+ */
+class SufficientStatistics {
+    val numberOfFeatures: Int
+    val numberOfSamples: Int
+    val XtX: DoubleArray
+    val Xty: DoubleArray
+    val yty: Double
+
+    constructor(numberOfFeatures: Int, numberOfSamples: Int, XtX: DoubleArray, Xty: DoubleArray, yty: Double) {
+        if (XtX.size != numberOfFeatures * numberOfFeatures || Xty.size != numberOfFeatures)
+            throw IllegalArgumentException("XtX must be n * n and Xty must be n long.")
+
+        this.numberOfFeatures = numberOfFeatures
+        this.numberOfSamples = numberOfSamples
+        this.XtX = XtX
+        this.Xty = Xty
+        this.yty = yty
+    }
+
+    companion object {
+        fun fromTrainData(trainData: TrainData): SufficientStatistics {
+            val X = trainData.X
+            val y = trainData.y
+            if (X.size != y.size)
+                throw IllegalArgumentException("X and y must have the same length.")
+            if (X.isEmpty())
+                throw IllegalArgumentException("X must contain at least one element.")
+
+            val n = X[0].size
+            val XtX = DoubleArray(n * n)
+            val Xty = DoubleArray(n)
+            var yty = 0.0
+
+            for (i in X.indices) {
+                yty += accumulateSample(X[i], y[i], XtX, Xty)
+            }
+
+            mirrorUpperTriangle(XtX, n)
+
+            return SufficientStatistics(n, X.size, XtX, Xty, yty)
+        }
+
+        /**
+         * With an [augmentation], every variant of every sample is added as a sample of its own.
+         */
+        fun fromPixelDataset(dataset: PixelDataset,
+                             featurePipeline: FeaturePipeline = FeaturePipeline.DEFAULT,
+                             augmentation: DataAugmentation? = null): SufficientStatistics {
+            if (dataset.numberOfSamples == 0)
+                throw IllegalArgumentException("X must contain at least one element.")
+
+            val n = featurePipeline.getNumberOfFeatures(dataset.numberOfPixels)
+            val XtX = DoubleArray(n * n)
+            val Xty = DoubleArray(n)
+            var yty = 0.0
+
+            // Only one sample's features are materialized at a time
+            val x = FloatArray(n)
+            val numberOfPixels = dataset.numberOfPixels
+            val numberOfVariants = augmentation?.numberOfVariants ?: 1
+            val variantPixels = ByteArray(numberOfPixels)
+            for (i in 0 until dataset.numberOfSamples) {
+                for (variant in 0 until numberOfVariants) {
+                    if (augmentation == null || augmentation.isOriginal(variant)) {
+                        featurePipeline.generateFeatures(dataset.pixels, i * numberOfPixels, numberOfPixels, x)
+                        yty += accumulateSample(x, dataset.y[i], XtX, Xty)
+                    } else {
+                        augmentation.generateVariant(dataset.pixels, i * numberOfPixels, variant, variantPixels)
+                        featurePipeline.generateFeatures(variantPixels, 0, numberOfPixels, x)
+                        yty += accumulateSample(x, augmentation.getLabel(dataset.y[i], variant), XtX, Xty)
+                    }
+                }
+            }
+
+            mirrorUpperTriangle(XtX, n)
+
+            return SufficientStatistics(n, dataset.numberOfSamples * numberOfVariants, XtX, Xty, yty)
+        }
+
+        /**
+         * Adds one sample to the upper triangle of XᵀX and to Xᵀy, and returns its contribution to yᵀy.
+         */
+        private fun accumulateSample(x: FloatArray, y: Float, XtX: DoubleArray, Xty: DoubleArray): Double {
+            val n = x.size
+            val yi = y.toDouble()
+
+            for (j in 0 until n) {
+                val xj = x[j].toDouble()
+                if (xj == 0.0) {
+                    continue
+                }
+
+                Xty[j] += xj * yi
+
+                val rowOffset = j * n
+                for (k in j until n) {
+                    XtX[rowOffset + k] += xj * x[k]
+                }
+            }
+
+            return yi * yi
+        }
+
+        private fun mirrorUpperTriangle(XtX: DoubleArray, n: Int) {
+            for (j in 0 until n) {
+                for (k in 0 until j) {
+                    XtX[j * n + k] = XtX[k * n + j]
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package es.jepp.legomachinelearning.data
+
+import java.lang.IllegalArgumentException
+
+/**
+ * Streams the samples of [TrainData] that is already in memory.
+ */
+class TrainDataSampleStream : SampleStream {
+    private val trainData: TrainData
+    private var index = 0
+
+    override val numberOfFeatures: Int
+
+    constructor(trainData: TrainData) {
+        if (trainData.X.size != trainData.y.size)
+            throw IllegalArgumentException("X and y must have the same length.")
+
+        this.trainData = trainData
+        this.numberOfFeatures = if (trainData.X.isEmpty()) 0 else trainData.X[0].size
+    }
+
+    override fun next(sample: Sample): Boolean {
+        if (index == trainData.y.size) {
+            return false
+        }
+
+        System.arraycopy(trainData.X[index], 0, sample.x, 0, numberOfFeatures)
+        sample.y = trainData.y[index]
+        index++
+        return true
+    }
+
+    override fun reset() {
+        index = 0
+    }
+}
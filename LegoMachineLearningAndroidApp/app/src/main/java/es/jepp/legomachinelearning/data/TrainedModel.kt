@@ -9,13 +9,19 @@ class TrainedModel {
     val sourceImageHeight: Int
     val theta: FloatArray
 
+    /**
+     * Null for models saved before the downsampling method could be chosen, which all used block averaging.
+     */
+    val downsamplingMethod: DownsamplingMethod?
+
     constructor(theta: FloatArray,
                 processedImageWidth: Int,
                 processedImageHeight: Int,
                 sourceImagePositionX: Int,
                 sourceImagePositionY: Int,
                 sourceImageWidth: Int,
-                sourceImageHeight: Int) {
+                sourceImageHeight: Int,
+                downsamplingMethod: DownsamplingMethod = DownsamplingMethod.BLOCK_AVERAGE) {
         this.theta = theta
         this.processedImageWidth = processedImageWidth
         this.processedImageHeight = processedImageHeight
@@ -23,5 +29,6 @@ class TrainedModel {
         this.sourceImagePositionY = sourceImagePositionY
         this.sourceImageWidth = sourceImageWidth
         this.sourceImageHeight = sourceImageHeight
+        this.downsamplingMethod = downsamplingMethod
     }
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * Everything needed to resume a gradient descent run: the settings it was started with and how far it got.
+ */
+class TrainingCheckpoint {
+    val trainingMethod: TrainingMethod
+    val optimizerMethod: OptimizerMethod
+    val learningRate: Float
+    val completedIterations: Int
+    val theta: FloatArray
+    val optimizerState: FloatArray
+
+    constructor(trainingMethod: TrainingMethod,
+                optimizerMethod: OptimizerMethod,
+                learningRate: Float,
+                completedIterations: Int,
+                theta: FloatArray,
+                optimizerState: FloatArray) {
+        this.trainingMethod = trainingMethod
+        this.optimizerMethod = optimizerMethod
+        this.learningRate = learningRate
+        this.completedIterations = completedIterations
+        this.theta = theta
+        this.optimizerState = optimizerState
+    }
+}
@@ -0,0 +1,14 @@
+package es.jepp.legomachinelearning.data
+
+enum class TrainingMethod(private val displayName: String) {
+    GRADIENT_DESCENT("Gradient descent"),
+    GRAM_MATRIX_GRADIENT_DESCENT("Gradient descent (Gram matrix)"),
+    PARALLEL_GRADIENT_DESCENT("Gradient descent (multi-core)"),
+    NORMAL_EQUATION("Normal equation (closed form)"),
+    STREAMING_SGD("Mini-batch SGD (streamed from file)"),
+    LEARNING_RATE_SWEEP("Learning rate sweep (successive halving)");
+
+    override fun toString(): String {
+        return displayName
+    }
+}
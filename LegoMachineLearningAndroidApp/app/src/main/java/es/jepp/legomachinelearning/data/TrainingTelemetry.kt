@@ -0,0 +1,95 @@
+package es.jepp.legomachinelearning.data
+
+/**
+ * Sits between a trainer and the UI and turns the per-iteration costs into at most one [Window] per [minimumIntervalMillis].
+ * Each window holds the minimum and the mean cost of the iterations it covers, so no iteration is lost from the summary.
+ * The end of training and errors are passed on right away, after the last partial window.
+ *
+ * Iterations must be reported from one thread at a time, which is the case for all trainers.
+ */
+class TrainingTelemetry : LinearRegression.LinearRegressionIterationHandler {
+    private val minimumIntervalNanos: Long
+    private val telemetryHandler: TelemetryHandler
+
+    private var windowStartNanos = 0L
+    private var totalNumberOfIterations = 0
+    private var firstIteration = 0
+    private var lastIteration = 0
+    private var numberOfCosts = 0
+    private var minimumCost = 0f
+    private var sumOfCosts = 0.0
+
+    constructor(minimumIntervalMillis: Long, telemetryHandler: TelemetryHandler) {
+        this.minimumIntervalNanos = minimumIntervalMillis * 1000000
+        this.telemetryHandler = telemetryHandler
+        this.windowStartNanos = System.nanoTime()
+    }
+
+    override fun afterEachIteration(totalNumberOfIterations: Int, currentIteration: Int, currentTrainCost: Float) {
+        if (numberOfCosts == 0) {
+            firstIteration = currentIteration
+            minimumCost = currentTrainCost
+        } else if (currentTrainCost < minimumCost) {
+            minimumCost = currentTrainCost
+        }
+
+        this.totalNumberOfIterations = totalNumberOfIterations
+        lastIteration = currentIteration
+        sumOfCosts += currentTrainCost
+        numberOfCosts++
+
+        if (System.nanoTime() - windowStartNanos >= minimumIntervalNanos) {
+            flush()
+        }
+    }
+
+    override fun afterAllIterations(theta: FloatArray) {
+        flush()
+        telemetryHandler.afterAllIterations(theta)
+    }
+
+    override fun trainError(errorMessage: String) {
+        flush()
+        telemetryHandler.trainError(errorMessage)
+    }
+
+    private fun flush() {
+        windowStartNanos = System.nanoTime()
+        if (numberOfCosts == 0) {
+            return
+        }
+
+        val window = Window(
+            totalNumberOfIterations,
+            firstIteration,
+            lastIteration,
+            minimumCost,
+            (sumOfCosts / numberOfCosts).toFloat())
+        numberOfCosts = 0
+        sumOfCosts = 0.0
+
+        telemetryHandler.afterIterationWindow(window)
+    }
+
+    class Window {
+        val totalNumberOfIterations: Int
+        val firstIteration: Int
+        val lastIteration: Int
+        val minimumCost: Float
+        val meanCost: Float
+
+        constructor(totalNumberOfIterations: Int, firstIteration: Int, lastIteration: Int, minimumCost: Float, meanCost: Float) {
+            this.totalNumberOfIterations = totalNumberOfIterations
+            this.firstIteration = firstIteration
+            this.lastIteration = lastIteration
+            this.minimumCost = minimumCost
+            this.meanCost = meanCost
+        }
+    }
+
+    interface TelemetryHandler {
+        fun afterIterationWindow(window: Window)
+        fun afterAllIterations(theta: FloatArray)
+        fun trainError(errorMessage: String)
+    }
+}
@@ -1,26 +1,57 @@
 package es.jepp.legomachinelearning.imagelogic
 
 import android.graphics.Bitmap
-import android.graphics.Color
+import android.graphics.ImageFormat
 import android.graphics.Point
-import com.otaliastudios.cameraview.PictureResult
-import java.nio.IntBuffer
+import android.os.Handler
+import android.os.Looper
+import com.otaliastudios.cameraview.frame.Frame
+import es.jepp.legomachinelearning.data.DownsamplingMethod
+import es.jepp.legomachinelearning.robotlogic.DrivePipeline
+import java.util.concurrent.ArrayBlockingQueue
 
 class CameraService {
-    private val imageDataReadyHandler: ImageDataReadyHandler
+    private val imageDataReadyHandler: ImageDataReadyHandler?
 
     private val cameraViewWidth: Int
     private val cameraViewHeight: Int
 
-    private val resultingBitmapMaxWidth: Int = 250
-    private val resultingBitmapMaxHeight: Int = 250
-
     private val minimumXSurroundingWantedPixels: Int
     private val maximumXSurroundingWantedPixels: Int
     private val minimumYSurroundingWantedPixels: Int
     private val maximumYSurroundingWantedPixels: Int
 
-    constructor(cameraViewWidth: Int, cameraViewHeight: Int, points: Array<Point>, imageDataReadyHandler: ImageDataReadyHandler) {
+    private val lumaRegionSampler: LumaRegionSampler
+    private val frameBufferPool: FrameBufferPool
+    private val readyBuffers: ArrayBlockingQueue<FrameBuffer>
+    private val previewBitmap: Bitmap
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val deliverReadyBuffersRunnable = Runnable { deliverReadyBuffers() }
+
+    @Volatile
+    private var isImageRequested = false
+
+    val processedImageWidth: Int
+        get() = lumaRegionSampler.outputWidth
+    val processedImageHeight: Int
+        get() = lumaRegionSampler.outputHeight
+
+    @Volatile
+    var drivePipeline: DrivePipeline? = null
+
+    /**
+     * Whether the handler gets a preview bitmap of each image. Building it is skipped while nothing shows it.
+     */
+    @Volatile
+    var isPreviewEnabled = true
+
+    /**
+     * Takes images of the area surrounded by [points], reduced to [processedImageWidth] x [processedImageHeight] pixels by [downsamplingMethod].
+     * [imageDataReadyHandler] may be null when the images only go to a [drivePipeline].
+     */
+    constructor(cameraViewWidth: Int, cameraViewHeight: Int, points: Array<Point>,
+                processedImageWidth: Int, processedImageHeight: Int, downsamplingMethod: DownsamplingMethod,
+                imageDataReadyHandler: ImageDataReadyHandler?) {
         this.cameraViewHeight = cameraViewHeight
         this.cameraViewWidth = cameraViewWidth
         this.imageDataReadyHandler = imageDataReadyHandler
@@ -48,66 +79,96 @@ class CameraService {
         maximumXSurroundingWantedPixels = maxX
         minimumYSurroundingWantedPixels = minY
         maximumYSurroundingWantedPixels = maxY
+
+        val regionY = Math.min(minY, cameraViewHeight - 1)
+        val regionHeight = Math.min(Math.max(1, maxY - minY), cameraViewHeight - regionY)
+        lumaRegionSampler = LumaRegionSampler(cameraViewWidth, cameraViewHeight, minX, regionY, Math.max(1, maxX - minX), regionHeight,
+            processedImageWidth, processedImageHeight, downsamplingMethod)
+        frameBufferPool = FrameBufferPool(processedImageWidth, processedImageHeight, NUMBER_OF_FRAME_BUFFERS)
+        readyBuffers = ArrayBlockingQueue(NUMBER_OF_FRAME_BUFFERS)
+        previewBitmap = Bitmap.createBitmap(processedImageWidth, processedImageHeight, Bitmap.Config.ARGB_8888)
     }
 
-    fun onPictureTaken(result: PictureResult) {
-        // Convert to bitmap to easily get the pixels we want
-        result.toBitmap(resultingBitmapMaxWidth, resultingBitmapMaxHeight) { resultingBitmap ->
-            val scale = cameraViewWidth.toFloat() / resultingBitmap!!.width
-            val minXImage = (minimumXSurroundingWantedPixels / scale).toInt()
-            val maxXImage = (maximumXSurroundingWantedPixels / scale).toInt()
-            val minYImage = (minimumYSurroundingWantedPixels / scale).toInt()
-            val maxYImage = (maximumYSurroundingWantedPixels / scale).toInt()
-            var height = maxYImage - minYImage
-            val width = maxXImage - minXImage
-
-            height = 1; // Always take just one row of pixels
-
-            val wantedPixels = IntArray(width * height)
-            resultingBitmap?.getPixels(wantedPixels, 0, width, minXImage, minYImage, width, height)
-
-            convertRgbPixelsToGrayscaleRgbValues(wantedPixels)
-            val newBitmap = Bitmap.createBitmap(width, height, resultingBitmap.config)
-            newBitmap.copyPixelsFromBuffer(IntBuffer.wrap(wantedPixels))
-
-            convertRgbPixelsToGrayscaleValues(wantedPixels)
-
-            imageDataReadyHandler.imageReady(
-                width,
-                height,
-                minimumXSurroundingWantedPixels,
-                minimumYSurroundingWantedPixels,
-                maximumXSurroundingWantedPixels - minimumXSurroundingWantedPixels,
-                maximumYSurroundingWantedPixels - minimumYSurroundingWantedPixels,
-                newBitmap,
-                wantedPixels)
-        }
+    /**
+     * Makes the next preview frame be turned into an image for the handler.
+     * Frames that arrive while no image is requested are skipped right away.
+     */
+    fun requestImage() {
+        isImageRequested = true
     }
 
-    fun convertRgbPixelsToGrayscaleValues(pixels: IntArray) {
-        for (i in pixels.indices) {
-            var from = pixels[i]
-            var red = Color.red(from)
-            var green = Color.green(from)
-            var blue = Color.blue(from)
+    /**
+     * Called by the camera's frame processor, on its own thread, for every preview frame.
+     * The frame data is only valid during this call, so the wanted pixels are copied to a pooled buffer,
+     * which is handed to the handler on the main thread and taken back when the handler returns.
+     * While a [drivePipeline] is set, every frame is captured into it instead and the handler isn't called.
+     */
+    fun onFrame(frame: Frame) {
+        val pipeline = drivePipeline
+        if (pipeline == null && !isImageRequested) {
+            return
+        }
+
+        val data = frame.data
+        if (data == null || frame.format != ImageFormat.NV21) {
+            return
+        }
+
+        if (pipeline != null) {
+            val pipelineFrame = pipeline.acquireFrame() ?: return
+            lumaRegionSampler.sample(data, frame.size.width, frame.size.height, frame.rotation, pipelineFrame.pixels)
+            pipeline.submitFrame(pipelineFrame)
+            return
+        }
+
+        // With every buffer still in use the request stays open for the next frame
+        val buffer = frameBufferPool.acquire() ?: return
+        isImageRequested = false
 
-            var gray = (red + green + blue) / 3
+        lumaRegionSampler.sample(data, frame.size.width, frame.size.height, frame.rotation, buffer.pixels)
+        buffer.updateGrayscalePixels()
 
-            pixels[i] = gray
+        readyBuffers.offer(buffer)
+        mainHandler.post(deliverReadyBuffersRunnable)
+    }
+
+    private fun deliverReadyBuffers() {
+        while (true) {
+            val buffer = readyBuffers.poll() ?: break
+            try {
+                val image = if (isPreviewEnabled) previewBitmap else null
+                if (image != null) {
+                    buffer.updatePreviewColors()
+                    image.setPixels(buffer.previewColors, 0, buffer.width, 0, 0, buffer.width, buffer.height)
+                }
+                imageDataReadyHandler?.imageReady(
+                    buffer.width,
+                    buffer.height,
+                    minimumXSurroundingWantedPixels,
+                    minimumYSurroundingWantedPixels,
+                    maximumXSurroundingWantedPixels - minimumXSurroundingWantedPixels,
+                    maximumYSurroundingWantedPixels - minimumYSurroundingWantedPixels,
+                    image,
+                    buffer)
+            } finally {
+                frameBufferPool.release(buffer)
+            }
         }
     }
 
-    fun convertRgbPixelsToGrayscaleRgbValues(pixels: IntArray) {
-        for (i in pixels.indices) {
-            var from = pixels[i]
-            var red = Color.red(from)
-            var green = Color.green(from)
-            var blue = Color.blue(from)
+    companion object {
+        // One buffer being filled, one being used on the main thread and one waiting in between
+        private const val NUMBER_OF_FRAME_BUFFERS = 3
 
-            var gray = (red + green + blue) / 3
+        private const val RESULTING_BITMAP_MAX_SIZE = 250
 
-            var grayColor = Color.rgb(gray, gray, gray)
-            pixels[i] = grayColor
+        /**
+         * The number of pixels per row the 250 x 250 snapshot used to give for the view columns [minX] to [maxX],
+         * which is what data collected before the width could be chosen has.
+         */
+        fun getDefaultProcessedImageWidth(cameraViewWidth: Int, cameraViewHeight: Int, minX: Int, maxX: Int): Int {
+            val scale = Math.max(cameraViewWidth, cameraViewHeight).toFloat() / RESULTING_BITMAP_MAX_SIZE
+            return Math.max(1, (maxX / scale).toInt() - (minX / scale).toInt())
         }
     }
-}
\ No newline at end of file
+}
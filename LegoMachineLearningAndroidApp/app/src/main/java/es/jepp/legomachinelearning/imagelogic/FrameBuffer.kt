@@ -0,0 +1,65 @@
+package es.jepp.legomachinelearning.imagelogic
+
+/**
+ * The pixels of one camera image, reused from frame to frame through a [FrameBufferPool].
+ * Whoever acquired the buffer owns it until it is released, and nobody may keep a reference to it or its arrays after that.
+ */
+class FrameBuffer {
+    val width: Int
+    val height: Int
+
+    /**
+     * The grayscale pixels as unsigned bytes, which is what the model reads.
+     */
+    val pixels: ByteArray
+
+    /**
+     * The same pixels as ints, which is what the data file and the online learner read.
+     */
+    val grayscalePixels: IntArray
+
+    /**
+     * The same pixels as opaque gray ARGB colors, for the preview. Only filled by [updatePreviewColors].
+     */
+    val previewColors: IntArray
+
+    var isAcquired = false
+        internal set
+
+    /**
+     * When the capture of this image started, from System.nanoTime.
+     */
+    var captureStartNanos = 0L
+
+    /**
+     * The steering angle the model computed for this image, in percent.
+     */
+    var steeringAngle = 0f
+
+    constructor(width: Int, height: Int) {
+        this.width = width
+        this.height = height
+        this.pixels = ByteArray(width * height)
+        this.grayscalePixels = IntArray(width * height)
+        this.previewColors = IntArray(width * height)
+    }
+
+    /**
+     * Fills [grayscalePixels] from [pixels].
+     */
+    fun updateGrayscalePixels() {
+        for (i in pixels.indices) {
+            grayscalePixels[i] = pixels[i].toInt() and 0xFF
+        }
+    }
+
+    /**
+     * Fills [previewColors] from [pixels]. Only needed for images that are actually shown.
+     */
+    fun updatePreviewColors() {
+        for (i in pixels.indices) {
+            val gray = pixels[i].toInt() and 0xFF
+            previewColors[i] = (0xFF shl 24) or (gray shl 16) or (gray shl 8) or gray
+        }
+    }
+}
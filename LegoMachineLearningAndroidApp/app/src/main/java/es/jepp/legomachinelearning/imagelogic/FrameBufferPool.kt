@@ -0,0 +1,80 @@
+package es.jepp.legomachinelearning.imagelogic
+
+import java.lang.IllegalArgumentException
+
+/**
+ * A bounded set of [FrameBuffer]s that are handed from the camera to the model and the preview and back again,
+ * so that once every buffer has been created, taking pictures allocates nothing.
+ * When all buffers are in use the frame is dropped instead of waiting or allocating another buffer,
+ * because a newer frame will be along shortly.
+ */
+class FrameBufferPool {
+    val width: Int
+    val height: Int
+    val capacity: Int
+
+    private val freeBuffers: Array<FrameBuffer?>
+    private var numberOfFreeBuffers = 0
+
+    var numberOfAllocatedBuffers = 0
+        private set
+    var numberOfAcquiredBuffers = 0L
+        private set
+    var numberOfDroppedFrames = 0L
+        private set
+
+    constructor(width: Int, height: Int, capacity: Int) {
+        if (width < 1 || height < 1)
+            throw IllegalArgumentException("The buffers must be at least one pixel.")
+        if (capacity < 1)
+            throw IllegalArgumentException("The pool must hold at least one buffer.")
+
+        this.width = width
+        this.height = height
+        this.capacity = capacity
+        this.freeBuffers = arrayOfNulls(capacity)
+    }
+
+    /**
+     * Returns a free buffer, or null if all [capacity] buffers are in use. The caller owns the buffer until it calls [release].
+     */
+    @Synchronized
+    fun acquire(): FrameBuffer? {
+        val buffer: FrameBuffer
+        if (numberOfFreeBuffers > 0) {
+            numberOfFreeBuffers--
+            buffer = freeBuffers[numberOfFreeBuffers]!!
+            freeBuffers[numberOfFreeBuffers] = null
+        } else if (numberOfAllocatedBuffers < capacity) {
+            buffer = FrameBuffer(width, height)
+            numberOfAllocatedBuffers++
+        } else {
+            numberOfDroppedFrames++
+            return null
+        }
+
+        buffer.isAcquired = true
+        numberOfAcquiredBuffers++
+        return buffer
+    }
+
+    /**
+     * Gives [buffer] back to the pool. Releasing a buffer twice, or one from another pool, is a bug in the owner and throws.
+     */
+    @Synchronized
+    fun release(buffer: FrameBuffer) {
+        if (!buffer.isAcquired)
+            throw IllegalArgumentException("The buffer was already released.")
+        if (buffer.width != width || buffer.height != height || numberOfFreeBuffers == capacity)
+            throw IllegalArgumentException("The buffer doesn't belong to this pool.")
+
+        buffer.isAcquired = false
+        freeBuffers[numberOfFreeBuffers] = buffer
+        numberOfFreeBuffers++
+    }
+
+    @Synchronized
+    fun getNumberOfBuffersInUse(): Int {
+        return numberOfAllocatedBuffers - numberOfFreeBuffers
+    }
+}
@@ -2,6 +2,10 @@ package es.jepp.legomachinelearning.imagelogic
 
 import android.graphics.Bitmap
 
+/**
+ * Receives the wanted pixels of each image. [image] and [frame] belong to the [CameraService] and are reused for later images,
+ * so anything that has to outlive the call must be copied. [image] is null while the camera service doesn't build previews.
+ */
 interface ImageDataReadyHandler {
     fun imageReady(
         processedImageWidth: Int,
@@ -10,5 +14,5 @@ interface ImageDataReadyHandler {
         sourceImagePositionY: Int,
         sourceImageWidth: Int,
         sourceImageHeight: Int,
-        image: Bitmap, grayscalePixels: IntArray)
+        image: Bitmap?, frame: FrameBuffer)
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+package es.jepp.legomachinelearning.imagelogic
+
+import es.jepp.legomachinelearning.data.DownsamplingMethod
+import java.lang.IllegalArgumentException
+
+/**
+ * Reads the wanted pixels straight from the luminance (Y) plane of a camera preview frame.
+ * The Y plane is the grayscale image already, so no JPEG, Bitmap or color conversion is needed.
+ *
+ * The region is given in camera view coordinates: the band from [regionX], [regionY] that is [regionWidth] by [regionHeight] view pixels
+ * is divided into [outputWidth] by [outputHeight] blocks, and every block becomes one output pixel by [downsamplingMethod].
+ * The frame is turned by the rotation the camera reports for it and shown the way CameraView shows the preview:
+ * scaled uniformly until it covers the view and centered, so the parts of the frame outside the view are cropped.
+ * Only plain JVM types are used, so it can be tested without a device.
+ */
+class LumaRegionSampler {
+    private val viewWidth: Int
+    private val viewHeight: Int
+    private val regionX: Int
+    private val regionY: Int
+    private val regionWidth: Int
+    private val regionHeight: Int
+    val outputWidth: Int
+    val outputHeight: Int
+    val downsamplingMethod: DownsamplingMethod
+
+    // Where the blocks of the output pixels are in the Y plane, for the last frame layout seen.
+    // The first pixel of the block in row r and column c is at rowOffsets[r] + columnOffsets[c]
+    private val columnOffsets: IntArray
+    private val columnCounts: IntArray
+    private val rowOffsets: IntArray
+    private val rowCounts: IntArray
+    private var columnStep = 0
+    private var rowStep = 0
+    private var frameWidth = -1
+    private var frameHeight = -1
+    private var rowStride = -1
+    private var rotation = -1
+
+    constructor(viewWidth: Int, viewHeight: Int,
+                regionX: Int, regionY: Int, regionWidth: Int, regionHeight: Int,
+                outputWidth: Int, outputHeight: Int = 1,
+                downsamplingMethod: DownsamplingMethod = DownsamplingMethod.BLOCK_AVERAGE) {
+        if (viewWidth < 1 || viewHeight < 1)
+            throw IllegalArgumentException("The view must be at least one pixel.")
+        if (outputWidth < 1 || outputHeight < 1 || regionWidth < 1 || regionHeight < 1)
+            throw IllegalArgumentException("The region and the output must be at least one pixel.")
+        if (regionX < 0 || regionY < 0 || regionX + regionWidth > viewWidth || regionY + regionHeight > viewHeight)
+            throw IllegalArgumentException("The region must be inside the view.")
+
+        this.viewWidth = viewWidth
+        this.viewHeight = viewHeight
+        this.regionX = regionX
+        this.regionY = regionY
+        this.regionWidth = regionWidth
+        this.regionHeight = regionHeight
+        this.outputWidth = outputWidth
+        this.outputHeight = outputHeight
+        this.downsamplingMethod = downsamplingMethod
+        this.columnOffsets = IntArray(outputWidth)
+        this.columnCounts = IntArray(outputWidth)
+        this.rowOffsets = IntArray(outputHeight)
+        this.rowCounts = IntArray(outputHeight)
+    }
+
+    /**
+     * Writes the luminance of the region to [target] row by row, which must have room for [outputWidth] * [outputHeight] pixels.
+     * [yPlane] starts with the Y plane of a [frameWidth] x [frameHeight] frame, like NV21 and YUV_420_888 data do,
+     * and [rotation] is the clockwise rotation in degrees that turns the frame upright in the view.
+     * Nothing is allocated unless the frame size or rotation changed since the last call.
+     */
+    fun sample(yPlane: ByteArray, frameWidth: Int, frameHeight: Int, rotation: Int, target: ByteArray, rowStride: Int = frameWidth) {
+        if (target.size < outputWidth * outputHeight)
+            throw IllegalArgumentException("The target must have room for ${outputWidth * outputHeight} pixels.")
+        if (yPlane.size < (frameHeight - 1) * rowStride + frameWidth)
+            throw IllegalArgumentException("The frame is smaller than $frameWidth x $frameHeight.")
+
+        if (frameWidth != this.frameWidth || frameHeight != this.frameHeight || rowStride != this.rowStride || rotation != this.rotation) {
+            computeOffsets(frameWidth, frameHeight, rowStride, rotation)
+        }
+
+        var targetIndex = 0
+        for (row in 0 until outputHeight) {
+            val rowOffset = rowOffsets[row]
+            val rowCount = rowCounts[row]
+            for (column in 0 until outputWidth) {
+                val columnCount = columnCounts[column]
+                var blockRowIndex = rowOffset + columnOffsets[column]
+                var sum = 0
+                for (k in 0 until rowCount) {
+                    var index = blockRowIndex
+                    for (j in 0 until columnCount) {
+                        sum += yPlane[index].toInt() and 0xFF
+                        index += columnStep
+                    }
+                    blockRowIndex += rowStep
+                }
+                target[targetIndex++] = (sum / (rowCount * columnCount)).toByte()
+            }
+        }
+    }
+
+    private fun computeOffsets(frameWidth: Int, frameHeight: Int, rowStride: Int, rotation: Int) {
+        if (frameWidth < 1 || frameHeight < 1 || rowStride < frameWidth)
+            throw IllegalArgumentException("The frame must be at least one pixel and rows can't overlap.")
+
+        // A view row runs along a frame row when the frame is upright or upside down, and along a frame column otherwise
+        val isTurned = when (rotation) {
+            0, 180 -> false
+            90, 270 -> true
+            else -> throw IllegalArgumentException("The rotation must be 0, 90, 180 or 270 degrees.")
+        }
+        val isColumnReversed = rotation == 90 || rotation == 180
+        val isRowReversed = rotation == 180 || rotation == 270
+
+        val displayWidth = if (isTurned) frameHeight else frameWidth
+        val displayHeight = if (isTurned) frameWidth else frameHeight
+
+        // The frame is scaled to cover the view, so the axis where the view is relatively longer decides the scale,
+        // which is scaleNumerator / scaleDenominator frame pixels per view pixel
+        val isScaledByWidth = viewWidth.toLong() * displayHeight >= viewHeight.toLong() * displayWidth
+        val scaleNumerator = if (isScaledByWidth) displayWidth else displayHeight
+        val scaleDenominator = if (isScaledByWidth) viewWidth else viewHeight
+
+        columnStep = if (isTurned) rowStride else 1
+        rowStep = if (isTurned) 1 else rowStride
+        computeBlocks(regionX, regionWidth, viewWidth, displayWidth, scaleNumerator, scaleDenominator,
+            isColumnReversed, columnStep, columnOffsets, columnCounts)
+        computeBlocks(regionY, regionHeight, viewHeight, displayHeight, scaleNumerator, scaleDenominator,
+            isRowReversed, rowStep, rowOffsets, rowCounts)
+        if (isColumnReversed) {
+            columnStep = -columnStep
+        }
+        if (isRowReversed) {
+            rowStep = -rowStep
+        }
+
+        this.frameWidth = frameWidth
+        this.frameHeight = frameHeight
+        this.rowStride = rowStride
+        this.rotation = rotation
+    }
+
+    /**
+     * Divides the view range [regionStart] to [regionStart] + [regionLength] into [offsets].size blocks of frame pixels along one axis,
+     * and stores the index offset of the first pixel of each block and the number of pixels in it.
+     * View position v is frame position v * [scaleNumerator] / [scaleDenominator] plus half of the frame that is cropped along this axis.
+     * With [DownsamplingMethod.STRIDE] each block is just its middle pixel.
+     */
+    private fun computeBlocks(regionStart: Int, regionLength: Int, viewLength: Int, frameLength: Int,
+                              scaleNumerator: Int, scaleDenominator: Int,
+                              isReversed: Boolean, step: Int, offsets: IntArray, counts: IntArray) {
+        val numberOfBlocks = offsets.size
+        // Everything is in units of 1 / (2 * scaleDenominator * numberOfBlocks) frame pixels, so the mapping is exact
+        val denominator = 2L * scaleDenominator * numberOfBlocks
+        val crop = (frameLength.toLong() * scaleDenominator - viewLength.toLong() * scaleNumerator) * numberOfBlocks
+        for (i in 0 until numberOfBlocks) {
+            val viewStart = regionStart.toLong() * numberOfBlocks + i.toLong() * regionLength
+            val viewEnd = viewStart + regionLength
+            var start = ((2 * viewStart * scaleNumerator + crop) / denominator).toInt()
+            val end = ((2 * viewEnd * scaleNumerator + crop) / denominator).toInt()
+            if (start > frameLength - 1) {
+                start = frameLength - 1
+            }
+            var count = end - start
+            count = if (count < 1) 1 else if (start + count > frameLength) frameLength - start else count
+
+            if (downsamplingMethod == DownsamplingMethod.STRIDE) {
+                start += count / 2
+                count = 1
+            }
+
+            offsets[i] = (if (isReversed) frameLength - 1 - start else start) * step
+            counts[i] = count
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package es.jepp.legomachinelearning.robotlogic
+
+import es.jepp.legomachinelearning.imagelogic.FrameBuffer
+import es.jepp.legomachinelearning.imagelogic.FrameBufferPool
+
+/**
+ * Drives the robot with capture, inference and steering running at the same time, each on its own thread.
+ * The stages are connected by [LatestValueMailbox]es, so the frame rate is bound by the slowest stage instead of the sum of all of them,
+ * and a slow stage skips to the newest frame instead of steering on old ones.
+ *
+ * Capture happens on the camera's thread: it calls [acquireFrame], samples the pixels into the frame and calls [submitFrame].
+ * The sampling is the only preprocessing, and it writes straight into the pooled frame, so it has no stage of its own.
+ * Frames come from [frameBufferPool] and go back to it when they are dropped or done. The last steered frame is kept for the preview,
+ * which takes it with [takePreviewFrame] and gives it back with [releaseFrame].
+ */
+class DrivePipeline {
+    private val frameBufferPool: FrameBufferPool
+    private val handler: Handler
+
+    val inferenceMailbox = LatestValueMailbox<FrameBuffer>()
+    val steeringMailbox = LatestValueMailbox<FrameBuffer>()
+    val previewMailbox = LatestValueMailbox<FrameBuffer>()
+
+    val captureStage = Stage("capture")
+    val inferenceStage = Stage("inference")
+    val steeringStage = Stage("steering")
+
+    /**
+     * The time from the start of the capture until the steering command was sent.
+     */
+    val captureToSteering = Stage("capture to steering")
+
+    private val threads = ArrayList<Thread>()
+    @Volatile private var isStopped = true
+    @Volatile var error: Exception? = null
+        private set
+
+    /**
+     * Whether steered frames are kept for [takePreviewFrame]. While nothing shows them they go straight back to the pool.
+     */
+    @Volatile var isPreviewEnabled = true
+
+    constructor(frameBufferPool: FrameBufferPool, handler: Handler) {
+        this.frameBufferPool = frameBufferPool
+        this.handler = handler
+    }
+
+    fun start() {
+        if (!isStopped)
+            throw Exception("The pipeline is already running.")
+
+        isStopped = false
+        error = null
+        startThread("inference") {
+            runStage(inferenceMailbox, inferenceStage, steeringMailbox) { it.steeringAngle = handler.computeSteeringAngle(it) }
+        }
+        startThread("steering") {
+            runStage(steeringMailbox, steeringStage, previewMailbox) {
+                handler.steer(it.steeringAngle)
+                captureToSteering.add(System.nanoTime() - it.captureStartNanos)
+            }
+        }
+    }
+
+    /**
+     * Stops the stages, waits for them to finish and gives every frame in the mailboxes back to the pool.
+     */
+    fun stop() {
+        isStopped = true
+        for (thread in threads) {
+            thread.join()
+        }
+        threads.clear()
+
+        for (mailbox in arrayOf(inferenceMailbox, steeringMailbox, previewMailbox)) {
+            val frame = mailbox.poll()
+            if (frame != null) {
+                frameBufferPool.release(frame)
+            }
+        }
+    }
+
+    /**
+     * Returns a frame to capture into, or null if the pipeline is stopped or every frame is in use, in which case the image is skipped.
+     */
+    fun acquireFrame(): FrameBuffer? {
+        if (isStopped) {
+            return null
+        }
+        val frame = frameBufferPool.acquire() ?: return null
+        frame.captureStartNanos = System.nanoTime()
+        return frame
+    }
+
+    fun submitFrame(frame: FrameBuffer) {
+        if (isStopped) {
+            frameBufferPool.release(frame)
+            return
+        }
+        captureStage.add(System.nanoTime() - frame.captureStartNanos)
+        releaseIfReplaced(inferenceMailbox.post(frame))
+
+        // A stop between the check above and the post may already have emptied the mailbox, so empty it again
+        if (isStopped) {
+            releaseIfReplaced(inferenceMailbox.poll())
+        }
+    }
+
+    /**
+     * Returns the last steered frame that wasn't shown yet, which must be given back with [releaseFrame].
+     */
+    fun takePreviewFrame(): FrameBuffer? {
+        return previewMailbox.poll()
+    }
+
+    fun releaseFrame(frame: FrameBuffer) {
+        frameBufferPool.release(frame)
+    }
+
+    /**
+     * One line per stage with its latency and how many frames were dropped in front of it.
+     */
+    fun getSummary(): String {
+        val result = StringBuilder()
+        result.append(captureStage.getSummary()).append(", dropped without a free frame: ").append(frameBufferPool.numberOfDroppedFrames)
+        val stages = arrayOf(inferenceStage, steeringStage)
+        val mailboxes = arrayOf(inferenceMailbox, steeringMailbox)
+        for (i in stages.indices) {
+            result.append("\n").append(stages[i].getSummary())
+                .append(", dropped waiting: ").append(mailboxes[i].numberOfDroppedValues)
+                .append(", waiting now: ").append(mailboxes[i].getDepth())
+        }
+        result.append("\n").append(captureToSteering.getSummary())
+        return result.toString()
+    }
+
+    private fun startThread(name: String, body: () -> Unit) {
+        val thread = Thread({
+            try {
+                body()
+            } catch (e: Exception) {
+                error = e
+                handler.pipelineFailed(e)
+            }
+        }, "DrivePipeline $name")
+        thread.isDaemon = true
+        thread.start()
+        threads.add(thread)
+    }
+
+    private inline fun runStage(input: LatestValueMailbox<FrameBuffer>, stage: Stage, output: LatestValueMailbox<FrameBuffer>,
+                                process: (FrameBuffer) -> Unit) {
+        while (!isStopped) {
+            // Waiting with a timeout lets the thread notice a stop without being interrupted in the middle of a steering command
+            val frame = input.take(10) ?: continue
+            val startTime = System.nanoTime()
+            try {
+                process(frame)
+            } catch (e: Exception) {
+                frameBufferPool.release(frame)
+                throw e
+            }
+            stage.add(System.nanoTime() - startTime)
+            if (output === previewMailbox && !isPreviewEnabled) {
+                frameBufferPool.release(frame)
+                continue
+            }
+            releaseIfReplaced(output.post(frame))
+            if (output === previewMailbox) {
+                handler.previewReady()
+            }
+        }
+    }
+
+    private fun releaseIfReplaced(frame: FrameBuffer?) {
+        if (frame != null) {
+            frameBufferPool.release(frame)
+        }
+    }
+
+    /**
+     * The work of the stages that depends on the model and the robot.
+     */
+    interface Handler {
+        /**
+         * Called on the inference thread.
+         */
+        fun computeSteeringAngle(frame: FrameBuffer): Float
+
+        /**
+         * Called on the steering thread.
+         */
+        fun steer(steeringAngle: Float)
+
+        /**
+         * Called on the steering thread when a steered frame can be taken with [takePreviewFrame].
+         */
+        fun previewReady()
+
+        /**
+         * Called on the thread of the stage that failed. That stage has stopped, the others keep waiting for frames.
+         */
+        fun pipelineFailed(e: Exception)
+    }
+
+    /**
+     * Counts the frames a stage handled and how long it took. Written by the stage's thread and read by any other.
+     */
+    class Stage {
+        val name: String
+
+        @Volatile var numberOfFrames = 0L
+            private set
+        @Volatile var totalNanos = 0L
+            private set
+        @Volatile var maximumNanos = 0L
+            private set
+
+        constructor(name: String) {
+            this.name = name
+        }
+
+        fun add(nanos: Long) {
+            numberOfFrames++
+            totalNanos += nanos
+            if (nanos > maximumNanos) {
+                maximumNanos = nanos
+            }
+        }
+
+        fun getAverageMillis(): Double {
+            val frames = numberOfFrames
+            return if (frames == 0L) 0.0 else totalNanos / 1e6 / frames
+        }
+
+        fun getSummary(): String {
+            return "$name: $numberOfFrames frames, average ${"%.2f".format(getAverageMillis())} ms, " +
+                    "maximum ${"%.2f".format(maximumNanos / 1e6)} ms"
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package es.jepp.legomachinelearning.robotlogic
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * A queue of at most one value between two threads, where a new value replaces the one that wasn't taken yet.
+ * A stage that falls behind then always gets the newest frame instead of working through old ones.
+ */
+class LatestValueMailbox<T : Any> {
+    private val lock = ReentrantLock()
+    private val posted = lock.newCondition()
+    private var value: T? = null
+
+    @Volatile var numberOfPostedValues = 0L
+        private set
+    @Volatile var numberOfDroppedValues = 0L
+        private set
+
+    /**
+     * Puts [newValue] in the mailbox and returns the value it replaced, if any, so its owner can release it.
+     */
+    fun post(newValue: T): T? {
+        lock.withLock {
+            val replacedValue = value
+            value = newValue
+            numberOfPostedValues++
+            if (replacedValue != null) {
+                numberOfDroppedValues++
+            }
+            posted.signalAll()
+            return replacedValue
+        }
+    }
+
+    /**
+     * Takes the value, waiting at most [timeoutMillis] for one to be posted. Returns null if none was.
+     */
+    fun take(timeoutMillis: Long): T? {
+        lock.withLock {
+            var remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+            while (value == null && remainingNanos > 0) {
+                remainingNanos = posted.awaitNanos(remainingNanos)
+            }
+            val takenValue = value
+            value = null
+            return takenValue
+        }
+    }
+
+    fun poll(): T? {
+        lock.withLock {
+            val takenValue = value
+            value = null
+            return takenValue
+        }
+    }
+
+    /**
+     * Returns 1 if a value is waiting and 0 otherwise.
+     */
+    fun getDepth(): Int {
+        lock.withLock {
+            return if (value == null) 0 else 1
+        }
+    }
+}
@@ -5,22 +5,31 @@ import android.app.AlertDialog
 import android.content.DialogInterface
 import android.graphics.Bitmap
 import android.graphics.Point
+import android.graphics.drawable.BitmapDrawable
 import android.os.Bundle
 import android.view.View
+import android.widget.ArrayAdapter
 import android.widget.CompoundButton
 import android.widget.RadioGroup
 import android.widget.Toast
-import com.otaliastudios.cameraview.CameraListener
+import com.google.gson.Gson
 import com.otaliastudios.cameraview.Flash
-import com.otaliastudios.cameraview.PictureResult
 import es.jepp.legomachinelearning.*
+import es.jepp.legomachinelearning.data.DataAugmentation
+import es.jepp.legomachinelearning.data.DatasetWriter
+import es.jepp.legomachinelearning.data.DownsamplingMethod
+import es.jepp.legomachinelearning.data.OnlineLeastSquaresLearner
+import es.jepp.legomachinelearning.data.TrainedModel
 import es.jepp.legomachinelearning.imagelogic.CameraService
+import es.jepp.legomachinelearning.imagelogic.FrameBuffer
 import es.jepp.legomachinelearning.imagelogic.ImageDataReadyHandler
 import es.jepp.legomachinelearning.robotlogic.FakeRobotController
 import es.jepp.legomachinelearning.robotlogic.NxtRobotController
 import es.jepp.legomachinelearning.robotlogic.RobotController
 import es.jepp.legomachinelearning.robotlogic.RobotHasSteeredHandler
 import kotlinx.android.synthetic.main.activity_collect_data.*
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
 import java.io.File
 
 
@@ -32,6 +41,11 @@ class CollectDataActivity : Activity() {
     private var isCurrentlyTakingPicture = false
     private var latestSteeringAngle = 0f
 
+    private var datasetWriter: DatasetWriter? = null
+    private var onlineLearner: OnlineLeastSquaresLearner? = null
+    private var onlineLearnerImageGeometry: IntArray? = null
+    private var downsamplingMethod = DownsamplingMethod.BLOCK_AVERAGE
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_collect_data)
@@ -50,10 +64,11 @@ class CollectDataActivity : Activity() {
             actualRobotController,
             object : RobotHasSteeredHandler {
                 override fun robotHasSteered(newAngleInPercent: Float) {
-                    if (!isCurrentlyTakingPicture) {
+                    val service = cameraService
+                    if (service != null && !isCurrentlyTakingPicture) {
                         isCurrentlyTakingPicture = true
                         latestSteeringAngle = newAngleInPercent
-                        camera.takePictureSnapshot()
+                        service.requestImage()
                     }
                 }
             })
@@ -71,6 +86,13 @@ class CollectDataActivity : Activity() {
             override fun onCheckedChanged(group: RadioGroup?, checkedId: Int) { }
         })
 
+        showCameraImageCheckBox.setOnCheckedChangeListener { _, isChecked -> cameraService?.isPreviewEnabled = isChecked }
+
+        downsamplingMethodSpinner.adapter = ArrayAdapter(
+            this,
+            android.R.layout.simple_spinner_dropdown_item,
+            DownsamplingMethod.values())
+
         collectDataContainer.visibility = View.GONE
         initializeContainer.visibility = View.VISIBLE
         startCollectButton.isEnabled = true
@@ -84,12 +106,7 @@ class CollectDataActivity : Activity() {
         continueCollectButton.setOnClickListener{continueCollectData()}
         pauseCollectButton.setOnClickListener { pauseCollectData() }
 
-        camera.addCameraListener(object: CameraListener() {
-            override fun onPictureTaken(result: PictureResult) {
-                cameraService?.onPictureTaken(result)
-                isCurrentlyTakingPicture = false
-            }
-        })
+        camera.addFrameProcessor { frame -> cameraService?.onFrame(frame) }
     }
 
     override fun onResume() {
@@ -106,6 +123,7 @@ class CollectDataActivity : Activity() {
         super.onDestroy()
         robotController?.disconnect()
         camera.destroy()
+        closeDatasetWriter()
     }
 
     private fun startInitialization() {
@@ -146,17 +164,34 @@ class CollectDataActivity : Activity() {
     }
 
     private fun startCollectData() {
+        val points = listSurroundingImageLinePoints(Math.max(1, bandHeightEditText.text.toString().toIntOrNull() ?: 1))
+        val numberOfRows = Math.max(1, numberOfRowsEditText.text.toString().toIntOrNull() ?: 1)
+        // Without a width the row gets as many pixels as before it could be chosen
+        val pixelsPerRow = pixelsPerRowEditText.text.toString().toIntOrNull()
+            ?: CameraService.getDefaultProcessedImageWidth(camera.width, camera.height, points[0].x, points[2].x)
+        downsamplingMethod = downsamplingMethodSpinner.selectedItem as DownsamplingMethod
+
         movableLine.setCanMove(false)
+        setSamplerSettingsEnabled(false)
 
         startCollectButton.isEnabled = false
         stopCollectButton.isEnabled = true
         continueCollectButton.isEnabled = false
         pauseCollectButton.isEnabled = true
 
+        // A new data file is started, so the online learner starts over as well
+        onlineLearner = null
+        datasetWriter = DatasetWriter(getDataFile())
+
+        // A request to the previous camera service may never be answered
+        isCurrentlyTakingPicture = false
         cameraService = CameraService(
             camera.width,
             camera.height,
-            listSurroundingImageLinePoints(),
+            points,
+            Math.max(1, pixelsPerRow),
+            numberOfRows,
+            downsamplingMethod,
             object : ImageDataReadyHandler {
                 override fun imageReady(
                     processedImageWidth: Int,
@@ -165,10 +200,16 @@ class CollectDataActivity : Activity() {
                     sourceImagePositionY: Int,
                     sourceImageWidth: Int,
                     sourceImageHeight: Int,
-                    image: Bitmap,
-                    grayscalePixels: IntArray
+                    image: Bitmap?,
+                    frame: FrameBuffer
                 ) {
-                    converted_image.setImageBitmap(image)
+                    isCurrentlyTakingPicture = false
+                    if (image != null) {
+                        showConvertedImage(image)
+                    }
+
+                    // The data file and the online learner copy the pixels into their own buffers
+                    val grayscalePixels = frame.grayscalePixels
 
                     steeringLine.setDistanceInPercentFromTopOrLeft(100 - latestSteeringAngle)
 
@@ -183,23 +224,34 @@ class CollectDataActivity : Activity() {
                         sourceImageHeight
                     )
 
-                    if (addMirroredDataCheckBox.isChecked) {
-                        val latestSteeringAngleMirrored = 100 - latestSteeringAngle
-                        val mirroredGrayscalePixels =
-                            mirrorPixelArray(grayscalePixels, processedImageWidth, processedImageHeight)
-                        writePixelsToDataFile(
-                            mirroredGrayscalePixels,
-                            latestSteeringAngleMirrored,
-                            processedImageWidth,
-                            processedImageHeight,
-                            sourceImagePositionX,
-                            sourceImagePositionY,
-                            sourceImageWidth,
-                            sourceImageHeight
-                        )
+                    if (trainWhileCollectingCheckBox.isChecked) {
+                        if (onlineLearner == null) {
+                            // Only the original frame is stored, training adds the mirrored copy on the fly.
+                            // The online learner has no such stage, so it learns every used frame together with its mirror
+                            val mirror = DataAugmentation(processedImageWidth, processedImageHeight, arrayOf(
+                                DataAugmentation.Variant.ORIGINAL,
+                                DataAugmentation.Variant(true, 0, 0)))
+                            try {
+                                onlineLearner = OnlineLeastSquaresLearner(
+                                    grayscalePixels.size, ONLINE_LEARNER_FRAME_BUDGET_NANOS, augmentation = mirror)
+                            } catch (e: IllegalArgumentException) {
+                                trainWhileCollectingCheckBox.isChecked = false
+                                addLogText("Can't train while collecting: ${e.message}")
+                                return
+                            }
+                            onlineLearnerImageGeometry = intArrayOf(
+                                processedImageWidth,
+                                processedImageHeight,
+                                sourceImagePositionX,
+                                sourceImagePositionY,
+                                sourceImageWidth,
+                                sourceImageHeight)
+                        }
+                        onlineLearner!!.offerFrame(grayscalePixels, latestSteeringAngle)
                     }
                 }
             })
+        cameraService!!.isPreviewEnabled = showCameraImageCheckBox.isChecked
 
         robotController?.startCollectData()
     }
@@ -228,8 +280,58 @@ class CollectDataActivity : Activity() {
         continueCollectButton.isEnabled = false
         pauseCollectButton.isEnabled = false
         movableLine.setCanMove(true)
+        setSamplerSettingsEnabled(true)
 
         robotController?.stopCollectData()
+
+        closeDatasetWriter()
+        saveOnlineTrainedModel()
+    }
+
+    private fun closeDatasetWriter() {
+        val writer = datasetWriter ?: return
+        datasetWriter = null
+
+        // Closing waits for the queued frames to be written, which must not block the UI thread
+        GlobalScope.launch {
+            writer.close()
+
+            val writeError = writer.writeError
+            runOnUiThread {
+                addLogText("Wrote ${writer.numberOfWrittenFrames} frames (${writer.numberOfDroppedFrames} dropped)")
+                if (writeError != null) {
+                    addLogText("Error when writing the data file: ${writeError.message}")
+                }
+            }
+        }
+    }
+
+    private fun saveOnlineTrainedModel() {
+        val learner = onlineLearner ?: return
+        val geometry = onlineLearnerImageGeometry!!
+        val method = downsamplingMethod
+        onlineLearner = null
+
+        GlobalScope.launch {
+            val theta = learner.finish()
+            val trainedModel = TrainedModel(theta, geometry[0], geometry[1], geometry[2], geometry[3], geometry[4], geometry[5], method)
+            getTrainedModelFile().writeText(Gson().toJson(trainedModel))
+
+            val averageMicros = learner.getAverageWallNanosPerFrame() / 1000
+            runOnUiThread {
+                addLogText("Saved model trained on ${learner.numberOfSamples} samples " +
+                        "(${learner.numberOfSkippedFrames} skipped, $averageMicros µs per frame)")
+            }
+        }
+    }
+
+    private fun showConvertedImage(image: Bitmap) {
+        // The camera service reuses the same bitmap, so after the first image it only has to be redrawn
+        if ((converted_image.drawable as? BitmapDrawable)?.bitmap !== image) {
+            converted_image.setImageBitmap(image)
+        } else {
+            converted_image.invalidate()
+        }
     }
 
     private fun writePixelsToDataFile(pixels: IntArray,
@@ -240,54 +342,53 @@ class CollectDataActivity : Activity() {
                                       sourceImagePositionY: Int,
                                       sourceImageWidth: Int,
                                       sourceImageHeight: Int){
-        var csvLine = "$processedImageWidth;$processedImageHeight;$sourceImagePositionX;$sourceImagePositionY;$sourceImageWidth;$sourceImageHeight,$steeringAngle"
-        for (pixel in pixels) {
-            csvLine += ",$pixel"
-        }
-        csvLine += "\n"
+        datasetWriter?.offerFrame(
+            pixels,
+            steeringAngle,
+            processedImageWidth,
+            processedImageHeight,
+            sourceImagePositionX,
+            sourceImagePositionY,
+            sourceImageWidth,
+            sourceImageHeight,
+            downsamplingMethod)
+    }
 
-        addTextToDataFile(csvLine)
+    private fun setSamplerSettingsEnabled(isEnabled: Boolean) {
+        bandHeightEditText.isEnabled = isEnabled
+        numberOfRowsEditText.isEnabled = isEnabled
+        pixelsPerRowEditText.isEnabled = isEnabled
+        downsamplingMethodSpinner.isEnabled = isEnabled
     }
 
-    private fun listSurroundingImageLinePoints(): Array<Point> {
+    /**
+     * The corners of the band of [bandHeight] view pixels that starts at the line, moved up where it would go below the view.
+     */
+    private fun listSurroundingImageLinePoints(bandHeight: Int): Array<Point> {
         var left = 0
         var right = movableLine.width
         var top = movableLine.getDistanceInPixelsFromTopOrLeft()
-        var bottom = top + 1
+        var bottom = top + Math.min(bandHeight, movableLine.height)
 
         if (bottom > movableLine.height) {
-            top -= 1
-            bottom -= 1
+            top -= bottom - movableLine.height
+            bottom = movableLine.height
         }
 
         return arrayOf<Point>(Point(left, top), Point(left, bottom), Point(right, bottom), Point(right, top))
     }
 
-    private fun mirrorPixelArray(pixels: IntArray, width: Int, height: Int): IntArray{
-        var mirrored = IntArray(pixels.size)
-        for (j in 0 until height){
-            for (i in 0 until width) {
-                var value = pixels[j * height + i]
-                mirrored[j * height + (width - (i + 1))] = value
-            }
-        }
-        return mirrored
-    }
-
     private fun addLogText(logText: String) {
         statusTextView.append("\n" + logText)
     }
 
-    private fun addTextToDataFile(text: String){
-        getDataFile().appendText(text)
-    }
-
     private fun doesDataFileExist(): Boolean {
         return getDataFile().exists()
     }
 
     private fun deleteDataFile(){
         getDataFile().delete()
+        getBinaryDataFile().delete()
     }
 
     private fun getDataFile(): File {
@@ -297,7 +398,26 @@ class CollectDataActivity : Activity() {
         return File(dataDirectory, fileName)
     }
 
+    private fun getBinaryDataFile(): File {
+        val dataDirectory = getExternalFilesDir(StaticSettings.BASE_FOLDER_NAME)
+        val modelName = getModelName()
+        val fileName = modelName + StaticSettings.BINARY_DATA_FILE_ENDING
+        return File(dataDirectory, fileName)
+    }
+
+    private fun getTrainedModelFile(): File {
+        val dataDirectory = getExternalFilesDir(StaticSettings.BASE_FOLDER_NAME)
+        val modelName = getModelName()
+        val fileName = modelName + StaticSettings.TRAINED_MODEL_FILE_ENDING
+        return File(dataDirectory, fileName)
+    }
+
     private fun getModelName() : String {
         return intent.getStringExtra("ModelName")
     }
+
+    companion object {
+        // The camera delivers a few frames per second, so a few milliseconds per frame leaves the UI responsive
+        private const val ONLINE_LEARNER_FRAME_BUDGET_NANOS = 5000000L
+    }
 }
@@ -4,21 +4,22 @@ import android.app.Activity
 import android.graphics.Bitmap
 import android.graphics.Color
 import android.graphics.Point
+import android.graphics.drawable.BitmapDrawable
 import android.os.Bundle
 import android.view.View
 import android.widget.CompoundButton
 import android.widget.RadioGroup
 import android.widget.Toast
 import com.google.gson.Gson
-import com.otaliastudios.cameraview.CameraListener
 import com.otaliastudios.cameraview.Flash
-import com.otaliastudios.cameraview.PictureResult
 import es.jepp.legomachinelearning.*
-import es.jepp.legomachinelearning.data.CsvToDataConverter
-import es.jepp.legomachinelearning.data.LinearRegressionTools
+import es.jepp.legomachinelearning.data.DownsamplingMethod
+import es.jepp.legomachinelearning.data.FeaturePipeline
 import es.jepp.legomachinelearning.data.TrainedModel
 import es.jepp.legomachinelearning.imagelogic.CameraService
-import es.jepp.legomachinelearning.imagelogic.ImageDataReadyHandler
+import es.jepp.legomachinelearning.imagelogic.FrameBuffer
+import es.jepp.legomachinelearning.imagelogic.FrameBufferPool
+import es.jepp.legomachinelearning.robotlogic.DrivePipeline
 import es.jepp.legomachinelearning.robotlogic.FakeRobotController
 import es.jepp.legomachinelearning.robotlogic.NxtRobotController
 import es.jepp.legomachinelearning.robotlogic.RobotController
@@ -33,6 +34,9 @@ class DriveActivity : Activity() {
     private var trainedModel: TrainedModel? = null
 
     private var isDriving = false
+    private var drivePipeline: DrivePipeline? = null
+    private var previewBitmap: Bitmap? = null
+    private val showPreviewFrameRunnable = Runnable { showPreviewFrame() }
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -62,11 +66,7 @@ class DriveActivity : Activity() {
                 override fun robotHasSteered(newAngleInPercent: Float) {}
             })
 
-        camera.addCameraListener(object: CameraListener() {
-            override fun onPictureTaken(result: PictureResult) {
-                cameraService?.onPictureTaken(result)
-            }
-        })
+        camera.addFrameProcessor { frame -> cameraService?.onFrame(frame) }
 
         cameraFlashOnCheckBox.setOnCheckedChangeListener(object: RadioGroup.OnCheckedChangeListener,
             CompoundButton.OnCheckedChangeListener {
@@ -81,6 +81,8 @@ class DriveActivity : Activity() {
             override fun onCheckedChanged(group: RadioGroup?, checkedId: Int) { }
         })
 
+        showCameraImageCheckBox.setOnCheckedChangeListener { _, isChecked -> drivePipeline?.isPreviewEnabled = isChecked }
+
         initializeSteeringButton.setOnClickListener { startInitialization() }
         startDriveButton.setOnClickListener { startDriving() }
         stopDrivingButton.setOnClickListener { stopDriving() }
@@ -98,6 +100,7 @@ class DriveActivity : Activity() {
 
     override fun onDestroy() {
         super.onDestroy()
+        stopDrivePipeline()
         robotController?.disconnect()
         camera.destroy()
     }
@@ -143,25 +146,41 @@ class DriveActivity : Activity() {
                     trainedModel!!.sourceImagePositionY + trainedModel!!.sourceImageHeight
                 )
             ),
-            object : ImageDataReadyHandler {
-                override fun imageReady(
-                    processedImageWidth: Int,
-                    processedImageHeight: Int,
-                    sourceImagePositionX: Int,
-                    sourceImagePositionY: Int,
-                    sourceImageWidth: Int,
-                    sourceImageHeight: Int,
-                    image: Bitmap,
-                    grayscalePixels: IntArray
-                ) {
-                    if (isDriving) {
-                        converted_image.setImageBitmap(image)
-                        steerCar(grayscalePixels)
+            trainedModel!!.processedImageWidth,
+            trainedModel!!.processedImageHeight,
+            trainedModel!!.downsamplingMethod ?: DownsamplingMethod.BLOCK_AVERAGE,
+            null)
+
+        val pipeline = DrivePipeline(
+            FrameBufferPool(cameraService!!.processedImageWidth, cameraService!!.processedImageHeight, DRIVE_PIPELINE_FRAME_BUFFERS),
+            object : DrivePipeline.Handler {
+                override fun computeSteeringAngle(frame: FrameBuffer): Float {
+                    val h = FeaturePipeline.DEFAULT.computeHypothesis(frame.pixels, trainedModel!!.theta)
+                    return h * 50f + 50f
+                }
+
+                override fun steer(steeringAngle: Float) {
+                    robotController?.steer(steeringAngle)
+                }
+
+                override fun previewReady() {
+                    runOnUiThread(showPreviewFrameRunnable)
+                }
+
+                override fun pipelineFailed(e: Exception) {
+                    runOnUiThread {
+                        statusTextView.append("\nDriving stopped: " + e.message)
+                        if (isDriving) {
+                            stopDriving()
+                        }
                     }
                 }
             })
-
-        camera.takePictureSnapshot()
+        previewBitmap = Bitmap.createBitmap(cameraService!!.processedImageWidth, cameraService!!.processedImageHeight, Bitmap.Config.ARGB_8888)
+        pipeline.isPreviewEnabled = showCameraImageCheckBox.isChecked
+        pipeline.start()
+        drivePipeline = pipeline
+        cameraService!!.drivePipeline = pipeline
 
         stopDrivingButton.isEnabled = true
     }
@@ -170,23 +189,39 @@ class DriveActivity : Activity() {
         stopDrivingButton.isEnabled = false
 
         isDriving = false
+        stopDrivePipeline()
         robotController!!.stopDriving()
 
         startDriveButton.isEnabled = true
     }
 
-    private fun steerCar(grayscalePixels: IntArray){
-        var features = CsvToDataConverter.generateFeaturesFromGrayscalePixels(grayscalePixels)
-        val h = LinearRegressionTools.computeHypothesis(features, trainedModel!!.theta)
-        var steeringAngle = h * 50f + 50f
+    private fun showConvertedImage(image: Bitmap) {
+        // The camera service reuses the same bitmap, so after the first image it only has to be redrawn
+        if ((converted_image.drawable as? BitmapDrawable)?.bitmap !== image) {
+            converted_image.setImageBitmap(image)
+        } else {
+            converted_image.invalidate()
+        }
+    }
 
-        if (isDriving) {
-            robotController?.steer(steeringAngle)
-            steeringLine.setDistanceInPercentFromTopOrLeft(100 - steeringAngle)
+    private fun stopDrivePipeline() {
+        val pipeline = drivePipeline ?: return
+        cameraService?.drivePipeline = null
+        pipeline.stop()
+        drivePipeline = null
+        statusTextView.append("\n" + pipeline.getSummary())
+    }
 
-            if (isDriving) {
-                camera.takePictureSnapshot()
-            }
+    private fun showPreviewFrame() {
+        val pipeline = drivePipeline ?: return
+        val frame = pipeline.takePreviewFrame() ?: return
+        try {
+            frame.updatePreviewColors()
+            previewBitmap!!.setPixels(frame.previewColors, 0, frame.width, 0, 0, frame.width, frame.height)
+            showConvertedImage(previewBitmap!!)
+            steeringLine.setDistanceInPercentFromTopOrLeft(100 - frame.steeringAngle)
+        } finally {
+            pipeline.releaseFrame(frame)
         }
     }
 
@@ -206,4 +241,9 @@ class DriveActivity : Activity() {
     private fun getModelName() : String {
         return intent.getStringExtra("ModelName")
     }
+
+    companion object {
+        // One frame being captured, one waiting in front of and one inside inference and steering, one waiting to be shown and one being shown
+        private const val DRIVE_PIPELINE_FRAME_BUFFERS = 7
+    }
 }
@@ -1,19 +1,39 @@
 package es.jepp.legomachinelearning.viewlogic
 
 import android.app.Activity
+import android.graphics.Color
 import android.os.Bundle
 import android.os.Handler
 import android.text.Editable
 import android.text.TextWatcher
 import android.view.View
+import android.widget.ArrayAdapter
 import android.widget.Toast
 import com.google.gson.Gson
 import com.jjoe64.graphview.series.DataPoint
 import es.jepp.legomachinelearning.data.LinearRegression
 import es.jepp.legomachinelearning.R
 import es.jepp.legomachinelearning.StaticSettings
+import es.jepp.legomachinelearning.data.BinaryDatasetConverter
+import es.jepp.legomachinelearning.data.DataAugmentation
+import es.jepp.legomachinelearning.data.DatasetCache
+import es.jepp.legomachinelearning.data.CheckpointWriter
 import es.jepp.legomachinelearning.data.CsvToDataConverter
+import es.jepp.legomachinelearning.data.FeaturePipeline
+import es.jepp.legomachinelearning.data.GradientEngine
+import es.jepp.legomachinelearning.data.GramGradientEngine
+import es.jepp.legomachinelearning.data.HyperparameterSweep
+import es.jepp.legomachinelearning.data.NormalEquationSolver
+import es.jepp.legomachinelearning.data.OptimizerMethod
+import es.jepp.legomachinelearning.data.ParallelGradientEngine
+import es.jepp.legomachinelearning.data.PixelDataset
+import es.jepp.legomachinelearning.data.PixelGradientEngine
+import es.jepp.legomachinelearning.data.StreamingSgdTrainer
+import es.jepp.legomachinelearning.data.SufficientStatistics
+import es.jepp.legomachinelearning.data.TrainingCheckpoint
 import es.jepp.legomachinelearning.data.TrainedModel
+import es.jepp.legomachinelearning.data.TrainingMethod
+import es.jepp.legomachinelearning.data.TrainingTelemetry
 import kotlinx.android.synthetic.main.activity_train.*
 import java.io.File
 import com.jjoe64.graphview.series.LineGraphSeries
@@ -22,9 +42,15 @@ import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 
 
-class TrainActivity : Activity(), LinearRegression.LinearRegressionIterationHandler {
+class TrainActivity : Activity(), TrainingTelemetry.TelemetryHandler {
     private var linearRegression: LinearRegression? = null
+    private var streamingSgdTrainer: StreamingSgdTrainer? = null
+    private var hyperparameterSweep: HyperparameterSweep? = null
+    private var checkpointWriter: CheckpointWriter? = null
+    private var parallelGradientEngine: ParallelGradientEngine? = null
+    private var trainingWasStopped = false
     private var graphSeries: LineGraphSeries<DataPoint>? = null
+    private var minimumCostGraphSeries: LineGraphSeries<DataPoint>? = null
 
     private var uiHandler: Handler? = null
 
@@ -43,6 +69,18 @@ class TrainActivity : Activity(), LinearRegression.LinearRegressionIterationHand
             trainContainer.visibility = View.VISIBLE
         }
 
+        resumeFromCheckpointCheckBox.visibility = if (getCheckpointFile().exists()) View.VISIBLE else View.GONE
+
+        trainingMethodSpinner.adapter = ArrayAdapter(
+            this,
+            android.R.layout.simple_spinner_dropdown_item,
+            TrainingMethod.values())
+
+        optimizerSpinner.adapter = ArrayAdapter(
+            this,
+            android.R.layout.simple_spinner_dropdown_item,
+            OptimizerMethod.values())
+
         deleteOldTrainedModelButton.setOnClickListener {
             deleteTrainedModel()
             deleteOldTrainedModelContainer.visibility = View.GONE
@@ -51,35 +89,198 @@ class TrainActivity : Activity(), LinearRegression.LinearRegressionIterationHand
 
         stopTrainButton.setOnClickListener {
             stopTrainButton.isEnabled = false
+            trainingWasStopped = true
             linearRegression?.stopGradientDescent()
+            streamingSgdTrainer?.stopTraining()
+            hyperparameterSweep?.stopSweep()
         }
 
         startTrainButton.setOnClickListener {
+            val checkpoint =
+                if (resumeFromCheckpointCheckBox.visibility == View.VISIBLE && resumeFromCheckpointCheckBox.isChecked)
+                    CheckpointWriter.readCheckpoint(getCheckpointFile())
+                else null
+
+            if (checkpoint != null) {
+                // Continue with the settings the checkpoint was made with
+                learningRateEditText.setText(checkpoint.learningRate.toString())
+                trainingMethodSpinner.setSelection(checkpoint.trainingMethod.ordinal)
+                optimizerSpinner.setSelection(checkpoint.optimizerMethod.ordinal)
+
+                if (numberOfIterationsEditText.text.toString().toInt() <= checkpoint.completedIterations) {
+                    Toast.makeText(
+                        this,
+                        "The checkpoint has already run ${checkpoint.completedIterations} iterations.",
+                        Toast.LENGTH_LONG).show()
+                    return@setOnClickListener
+                }
+            }
+
             startTrainButton.isEnabled = false
             stopTrainButton.isEnabled = true
             learningRateEditText.isEnabled = false
             numberOfIterationsEditText.isEnabled = false
+            ridgeDampingEditText.isEnabled = false
+            trainingMethodSpinner.isEnabled = false
+            optimizerSpinner.isEnabled = false
+            resumeFromCheckpointCheckBox.isEnabled = false
+            augmentDataCheckBox.isEnabled = false
+            trainingWasStopped = false
 
             val numberOfIterations = numberOfIterationsEditText.text.toString().toInt()
             val learningRate = learningRateEditText.text.toString().toFloat()
-            val trainData = CsvToDataConverter.convertDataFromFile(getTrainDataFile())
+            val ridgeDamping = ridgeDampingEditText.text.toString().toFloat()
+            val trainingMethod = trainingMethodSpinner.selectedItem as TrainingMethod
+            val optimizerMethod = optimizerSpinner.selectedItem as OptimizerMethod
+
+            // Progress reaches the UI thread a bounded number of times per second, however fast the iterations are
+            val iterationHandler = TrainingTelemetry(StaticSettings.TELEMETRY_INTERVAL_MILLIS, this)
+
+            if (trainingMethod == TrainingMethod.STREAMING_SGD) {
+                // The data file is read while training, so it is never loaded into memory as a whole
+                setupGraph(numberOfIterations)
+
+                streamingSgdTrainer = StreamingSgdTrainer(getTrainDataFile(), learningRate, numberOfIterations)
+                streamingSgdTrainer!!.generateTheta()
+                streamingSgdTrainer!!.setIterationHandler(iterationHandler)
+                streamingSgdTrainer!!.doTraining()
+                return@setOnClickListener
+            }
 
-            setupGraph(numberOfIterations)
+            val augmentData = augmentDataCheckBox.isChecked
+            addLogText("Loading the data")
+
+            // Loading the data and building the statistics of a real data file takes seconds, so it is not done on the UI thread
+            GlobalScope.launch {
+                val startTraining: () -> Unit
+                try {
+                    startTraining = prepareTraining(trainingMethod, optimizerMethod, numberOfIterations, learningRate,
+                        ridgeDamping, augmentData, checkpoint, iterationHandler)
+                } catch (e: Exception) {
+                    trainError(e.message ?: "Error when loading the data file.")
+                    return@launch
+                }
+
+                uiHandler!!.post {
+                    if (trainingWasStopped) {
+                        shutdownParallelGradientEngine()
+                        showTrainingEnded()
+                    } else {
+                        startTraining()
+                    }
+                }
+            }
+        }
+    }
 
-            linearRegression = LinearRegression(
-                trainData.X,
-                trainData.y,
-                learningRate,
-                numberOfIterations
-            )
+    /**
+     * Loads the dataset and builds what [trainingMethod] trains with. Runs on a background thread.
+     * The returned function sets up the graph and starts training, and must be called on the UI thread.
+     */
+    private fun prepareTraining(trainingMethod: TrainingMethod,
+                                optimizerMethod: OptimizerMethod,
+                                numberOfIterations: Int,
+                                learningRate: Float,
+                                ridgeDamping: Float,
+                                augmentData: Boolean,
+                                checkpoint: TrainingCheckpoint?,
+                                iterationHandler: TrainingTelemetry): () -> Unit {
+        val dataset = loadTrainDataset()
+        val augmentation = if (augmentData) createDataAugmentation() else null
+
+        if (trainingMethod == TrainingMethod.NORMAL_EQUATION) {
+            val normalEquationSolver = NormalEquationSolver(
+                SufficientStatistics.fromPixelDataset(dataset, FeaturePipeline.DEFAULT, augmentation),
+                ridgeDamping)
+            normalEquationSolver.setIterationHandler(iterationHandler)
+            return {
+                setupGraph(1)
+                normalEquationSolver.doSolve()
+            }
+        }
 
-            linearRegression!!.generateTheta()
-            linearRegression!!.setIterationHandler(this)
+        if (trainingMethod == TrainingMethod.LEARNING_RATE_SWEEP) {
+            // The learning rate from the text field is the center of the swept range
+            val sweep = HyperparameterSweep(
+                dataset,
+                HyperparameterSweep.createLearningRateCandidates(optimizerMethod, learningRate),
+                numberOfIterations,
+                Runtime.getRuntime().availableProcessors(),
+                FeaturePipeline.DEFAULT,
+                augmentation)
+            sweep.setIterationHandler(iterationHandler)
+            return {
+                hyperparameterSweep = sweep
+                setupGraph(sweep.numberOfRounds)
+                sweep.doSweep()
+            }
+        }
 
-            linearRegression!!.doGradientDescent()
+        val optimizer = optimizerMethod.createOptimizer(learningRate)
+        val regression = LinearRegression(
+            createGradientEngine(trainingMethod, dataset, augmentation),
+            optimizer,
+            numberOfIterations
+        )
+
+        if (checkpoint != null) {
+            regression.setTheta(checkpoint.theta)
+            regression.setCompletedIterations(checkpoint.completedIterations)
+            optimizer.restoreState(checkpoint.optimizerState)
+            addLogText("Resuming after ${checkpoint.completedIterations} iterations")
+        } else {
+            regression.generateTheta()
+        }
+        regression.setIterationHandler(iterationHandler)
+        regression.setCostReportInterval(StaticSettings.COST_REPORT_INTERVAL)
+
+        return {
+            val writer = CheckpointWriter(getCheckpointFile(), object : CheckpointWriter.ErrorHandler {
+                override fun checkpointWriteFailed(e: Exception) {
+                    addLogText("Could not save a checkpoint: " + e.message)
+                }
+            })
+            checkpointWriter = writer
+            regression.setCheckpointHandler(StaticSettings.CHECKPOINT_INTERVAL, object : LinearRegression.CheckpointHandler {
+                override fun saveCheckpoint(completedIterations: Int, theta: FloatArray, optimizerState: FloatArray) {
+                    writer.write(TrainingCheckpoint(
+                        trainingMethod, optimizerMethod, learningRate, completedIterations, theta, optimizerState))
+                }
+            })
+
+            linearRegression = regression
+            setupGraph(numberOfIterations)
+            regression.doGradientDescent()
+        }
+    }
+
+    private fun createGradientEngine(trainingMethod: TrainingMethod,
+                                     dataset: PixelDataset,
+                                     augmentation: DataAugmentation?): GradientEngine {
+        return when (trainingMethod) {
+            TrainingMethod.GRADIENT_DESCENT -> PixelGradientEngine(dataset, FeaturePipeline.DEFAULT, augmentation)
+            TrainingMethod.GRAM_MATRIX_GRADIENT_DESCENT ->
+                GramGradientEngine(SufficientStatistics.fromPixelDataset(dataset, FeaturePipeline.DEFAULT, augmentation))
+            TrainingMethod.PARALLEL_GRADIENT_DESCENT -> {
+                val numberOfThreads = Runtime.getRuntime().availableProcessors()
+                val engine = ParallelGradientEngine(dataset, FeaturePipeline.DEFAULT, numberOfThreads, numberOfThreads, augmentation)
+                parallelGradientEngine = engine
+                engine
+            }
+            else -> throw IllegalArgumentException("$trainingMethod is not a gradient descent method.")
         }
     }
 
+    override fun onDestroy() {
+        super.onDestroy()
+
+        // Stopping makes LinearRegression save a final checkpoint, so the run can be resumed later
+        trainingWasStopped = true
+        linearRegression?.stopGradientDescent()
+        streamingSgdTrainer?.stopTraining()
+        hyperparameterSweep?.stopSweep()
+    }
+
     private fun setupGraph(totalNumberOfIterations: Int) {
         // Reset the graph before setup
         graph.removeAllSeries()
@@ -91,9 +292,13 @@ class TrainActivity : Activity(), LinearRegression.LinearRegressionIterationHand
         graph.viewport.isYAxisBoundsManual = false
         graph.viewport.setMinY(0.toDouble())
 
-        // first mSeries is a line
+        // first mSeries is a line with the mean cost of each telemetry window, the second one has the minimum cost
         graphSeries = LineGraphSeries()
         graph.addSeries(graphSeries)
+
+        minimumCostGraphSeries = LineGraphSeries()
+        minimumCostGraphSeries!!.color = Color.GRAY
+        graph.addSeries(minimumCostGraphSeries)
     }
 
     private fun doesTrainedModelExist(): Boolean {
@@ -117,6 +322,39 @@ class TrainActivity : Activity(), LinearRegression.LinearRegressionIterationHand
         }
     }
 
+    private fun getCheckpointFile(): File {
+        val dataDirectory = getExternalFilesDir(StaticSettings.BASE_FOLDER_NAME)
+        val modelName = getModelName()
+        val fileName = modelName + StaticSettings.CHECKPOINT_FILE_ENDING
+        return File(dataDirectory, fileName)
+    }
+
+    /**
+     * Loads the dataset from memory if this data file was loaded before, and otherwise from its binary copy,
+     * which is (re)created from the CSV file whenever that has changed.
+     */
+    private fun loadTrainDataset(): PixelDataset {
+        return datasetCache.getPixelDataset(
+            getTrainDataFile(),
+            getBinaryTrainDataFile(),
+            Runtime.getRuntime().availableProcessors())
+    }
+
+    /**
+     * The image size comes from the binary data file, which [loadTrainDataset] has created.
+     */
+    private fun createDataAugmentation(): DataAugmentation {
+        val header = BinaryDatasetConverter.readHeader(getBinaryTrainDataFile())
+        return DataAugmentation.createDefault(header.processedImageWidth, header.processedImageHeight)
+    }
+
+    private fun getBinaryTrainDataFile(): File {
+        val dataDirectory = getExternalFilesDir(StaticSettings.BASE_FOLDER_NAME)
+        val modelName = getModelName()
+        val fileName = modelName + StaticSettings.BINARY_DATA_FILE_ENDING
+        return File(dataDirectory, fileName)
+    }
+
     private fun getTrainDataFile(): File {
         val dataDirectory = getExternalFilesDir(StaticSettings.BASE_FOLDER_NAME)
         val modelName = getModelName()
@@ -133,45 +371,79 @@ class TrainActivity : Activity(), LinearRegression.LinearRegressionIterationHand
         file.writeText(json)
     }
 
-    override fun afterEachIteration(totalNumberOfIterations: Int, currentIteration: Int, currentTrainCost: Float) {
-        val percentageDone = (100 * currentIteration) / totalNumberOfIterations
+    override fun afterIterationWindow(window: TrainingTelemetry.Window) {
+        val percentageDone = (100 * window.lastIteration) / window.totalNumberOfIterations
 
         uiHandler!!.post {
             percentageDoneTextView.text = percentageDone.toString()
 
             graphSeries!!.appendData(
-                DataPoint(currentIteration.toDouble(), currentTrainCost.toDouble()),
+                DataPoint(window.lastIteration.toDouble(), window.meanCost.toDouble()),
+                false,
+                window.totalNumberOfIterations
+            )
+            minimumCostGraphSeries!!.appendData(
+                DataPoint(window.lastIteration.toDouble(), window.minimumCost.toDouble()),
                 false,
-                totalNumberOfIterations
+                window.totalNumberOfIterations
             )
         }
     }
 
     override fun afterAllIterations(theta: FloatArray) {
+        hyperparameterSweep?.results?.forEach { addLogText(it.toString()) }
+
         var trainedModel = CsvToDataConverter.generateTrainedModel(getTrainDataFile(), theta)
         writeTrainedModelFile(trainedModel)
 
+        // A finished run doesn't need its checkpoint anymore, a stopped one keeps it for resuming
+        if (!trainingWasStopped) {
+            checkpointWriter?.delete()
+        }
+        checkpointWriter?.finish()
+        checkpointWriter = null
+        shutdownParallelGradientEngine()
+
         uiHandler!!.post{
-            startTrainButton.isEnabled = true
-            stopTrainButton.isEnabled = false
-            learningRateEditText.isEnabled = true
-            numberOfIterationsEditText.isEnabled = true
+            hyperparameterSweep = null
+            showTrainingEnded()
         }
     }
 
     override fun trainError(errorMessage: String) {
+        // The last checkpoint was made before the error, so it is kept
+        checkpointWriter?.finish()
+        checkpointWriter = null
+        shutdownParallelGradientEngine()
+
         uiHandler!!.post{
+            hyperparameterSweep = null
             Toast.makeText(this, errorMessage, Toast.LENGTH_LONG).show()
 
             addLogText(errorMessage)
 
-            startTrainButton.isEnabled = true
-            stopTrainButton.isEnabled = false
-            learningRateEditText.isEnabled = true
-            numberOfIterationsEditText.isEnabled = true
+            showTrainingEnded()
         }
     }
 
+    private fun shutdownParallelGradientEngine() {
+        parallelGradientEngine?.shutdown()
+        parallelGradientEngine = null
+    }
+
+    private fun showTrainingEnded() {
+        startTrainButton.isEnabled = true
+        stopTrainButton.isEnabled = false
+        learningRateEditText.isEnabled = true
+        numberOfIterationsEditText.isEnabled = true
+        ridgeDampingEditText.isEnabled = true
+        trainingMethodSpinner.isEnabled = true
+        optimizerSpinner.isEnabled = true
+        resumeFromCheckpointCheckBox.isEnabled = true
+        augmentDataCheckBox.isEnabled = true
+        resumeFromCheckpointCheckBox.visibility = if (getCheckpointFile().exists()) View.VISIBLE else View.GONE
+    }
+
     private fun addLogText(logText: String) {
         uiHandler!!.post{
             statusTextView.append("\n" + logText)
@@ -184,4 +456,9 @@ class TrainActivity : Activity(), LinearRegression.LinearRegressionIterationHand
             }
         }
     }
+
+    companion object {
+        // Outlives the activity, so training the same model again starts right away
+        private val datasetCache = DatasetCache(StaticSettings.DATASET_CACHE_BUDGET_BYTES)
+    }
 }
@@ -0,0 +1,94 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.File
+
+class BinaryDatasetConverterTest {
+    @Test
+    fun readPixelDataset_matchesCsv() {
+        val csvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(5000, 31L))
+        val binaryFile = File.createTempFile("data", ".bin")
+        BinaryDatasetConverter.convertCsvFileToBinaryFile(csvFile, binaryFile)
+
+        val fromCsv = CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile)
+        val fromBinary = BinaryDatasetConverter.readPixelDataset(binaryFile)
+        val header = BinaryDatasetConverter.readHeader(binaryFile)
+        csvFile.delete()
+        binaryFile.delete()
+
+        assertEquals(10, header.processedImageWidth)
+        assertEquals(TestData.NUMBER_OF_PIXELS, header.numberOfPixels)
+        assertEquals(fromCsv.numberOfSamples, fromBinary.numberOfSamples)
+        assertArrayEquals(fromCsv.pixels, fromBinary.pixels)
+        assertArrayEquals(fromCsv.y, fromBinary.y, 0f)
+    }
+
+    @Test
+    fun convertCsvFileToBinaryFile_leavesTheOldFileWhenTheConversionFails() {
+        val csvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(100, 32L))
+        csvFile.appendText("10;5;0;100;640;2,50.0,1,2,x\n")
+        val binaryFile = File.createTempFile("data", ".bin")
+        binaryFile.writeText("old")
+
+        try {
+            BinaryDatasetConverter.convertCsvFileToBinaryFile(csvFile, binaryFile)
+            fail()
+        } catch (e: Exception) {
+        }
+        val oldText = binaryFile.readText()
+        val temporaryFileExists = File(binaryFile.path + ".tmp").exists()
+        csvFile.delete()
+        binaryFile.delete()
+
+        // Only a complete conversion replaces the file, so a header never claims a half written file matches the CSV file
+        assertEquals("old", oldText)
+        assertFalse(temporaryFileExists)
+    }
+
+    @Test
+    fun downsamplingMethod_isKeptFromTheDataFileToTheTrainedModel() {
+        val csvFile = File.createTempFile("data", ".csv")
+        val writer = DatasetWriter(csvFile, dropWhenFull = false)
+        for (i in 0 until 10) {
+            writer.offerFrame(IntArray(8) { it * i }, 40f + i, 4, 2, 0, 1500, 1080, 240, DownsamplingMethod.STRIDE)
+        }
+        writer.close()
+        val binaryFile = File.createTempFile("data", ".bin")
+        BinaryDatasetConverter.convertCsvFileToBinaryFile(csvFile, binaryFile)
+        assertEquals(DownsamplingMethod.STRIDE, CsvToDataConverter.generateTrainedModel(csvFile, FloatArray(17)).downsamplingMethod)
+        assertEquals(DownsamplingMethod.STRIDE, BinaryDatasetConverter.generateTrainedModel(binaryFile, FloatArray(17)).downsamplingMethod)
+        assertArrayEquals(CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile).pixels,
+            BinaryDatasetConverter.readPixelDataset(binaryFile).pixels)
+
+        // Files from before the method could be chosen mean block averaging
+        val oldCsvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(10, 52L))
+        val oldBinaryFile = File.createTempFile("data", ".bin")
+        BinaryDatasetConverter.convertCsvFileToBinaryFile(oldCsvFile, oldBinaryFile)
+        assertEquals(DownsamplingMethod.BLOCK_AVERAGE, CsvToDataConverter.generateTrainedModel(oldCsvFile, FloatArray(1)).downsamplingMethod)
+        assertEquals(DownsamplingMethod.BLOCK_AVERAGE, BinaryDatasetConverter.readHeader(oldBinaryFile).downsamplingMethod)
+
+        // A version 1 binary file is the version 2 file without the method in the header
+        val version2Bytes = oldBinaryFile.readBytes()
+        val version1Bytes = version2Bytes.copyOfRange(0, BinaryDatasetConverter.VERSION_1_HEADER_SIZE) +
+                version2Bytes.copyOfRange(BinaryDatasetConverter.HEADER_SIZE, version2Bytes.size)
+        version1Bytes[4] = 1
+        oldBinaryFile.writeBytes(version1Bytes)
+        assertArrayEquals(CsvToDataConverter.convertDataFromFileToPixelDataset(oldCsvFile).pixels,
+            BinaryDatasetConverter.readPixelDataset(oldBinaryFile).pixels)
+        val oldSamples = BinaryFileSampleStream(oldBinaryFile)
+        var numberOfOldSamples = 0
+        while (oldSamples.next(Sample(oldSamples.numberOfFeatures))) {
+            numberOfOldSamples++
+        }
+        oldSamples.close()
+        assertEquals(10, numberOfOldSamples)
+
+        for (file in arrayOf(csvFile, binaryFile, oldCsvFile, oldBinaryFile)) {
+            file.delete()
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.io.File
+
+class CheckpointWriterTest {
+    @Test
+    fun readCheckpoint_resumedRunMatchesUninterruptedRun() {
+        val engine = PixelGradientEngine(TestData.generatePixelDataset(1000, 23L))
+        val checkpointFile = File.createTempFile("checkpoint", ".json")
+        val writer = CheckpointWriter(checkpointFile)
+
+        val uninterrupted = TestData.tryGradientDescent(engine, AdamOptimizer(0.01f), 200)!!
+
+        TestData.tryGradientDescent(engine, AdamOptimizer(0.01f), 100) {
+            it.setCheckpointHandler(10, object : LinearRegression.CheckpointHandler {
+                override fun saveCheckpoint(completedIterations: Int, theta: FloatArray, optimizerState: FloatArray) {
+                    writer.write(TrainingCheckpoint(
+                        TrainingMethod.GRADIENT_DESCENT, OptimizerMethod.ADAM, 0.01f,
+                        completedIterations, theta, optimizerState))
+                }
+            })
+        }
+        writer.finish()
+
+        val checkpoint = CheckpointWriter.readCheckpoint(checkpointFile)!!
+        checkpointFile.delete()
+
+        val optimizer = AdamOptimizer(0.01f)
+        optimizer.restoreState(checkpoint.optimizerState)
+        val resumed = TestData.tryGradientDescent(engine, optimizer, 200) {
+            it.setTheta(checkpoint.theta)
+            it.setCompletedIterations(checkpoint.completedIterations)
+        }!!
+
+        assertEquals(100, checkpoint.completedIterations)
+        assertArrayEquals(uninterrupted, resumed, 0f)
+    }
+
+    @Test
+    fun readCheckpoint_fallsBackToTheTemporaryFileOfAnInterruptedWrite() {
+        val checkpointFile = File.createTempFile("checkpoint", ".json")
+        val temporaryFile = File(checkpointFile.path + ".tmp")
+        val writer = CheckpointWriter(checkpointFile)
+        writer.write(createCheckpoint(10))
+        writer.finish()
+        assertEquals(10, CheckpointWriter.readCheckpoint(checkpointFile)!!.completedIterations)
+
+        // Stopped after the temporary file was written but before the rename
+        checkpointFile.renameTo(temporaryFile)
+        assertEquals(10, CheckpointWriter.readCheckpoint(checkpointFile)!!.completedIterations)
+
+        // Stopped halfway through writing the checkpoint
+        temporaryFile.copyTo(checkpointFile)
+        checkpointFile.writeText(checkpointFile.readText().substring(0, 20))
+        assertEquals(10, CheckpointWriter.readCheckpoint(checkpointFile)!!.completedIterations)
+
+        checkpointFile.delete()
+        temporaryFile.delete()
+        assertNull(CheckpointWriter.readCheckpoint(checkpointFile))
+    }
+
+    @Test
+    fun write_reportsAFailedWriteToTheHandler() {
+        val directory = createTempDir("checkpoint")
+        val checkpointFile = File(directory, "missing/checkpoint.json")
+        var reportedError: Exception? = null
+        val writer = CheckpointWriter(checkpointFile, object : CheckpointWriter.ErrorHandler {
+            override fun checkpointWriteFailed(e: Exception) {
+                reportedError = e
+            }
+        })
+        writer.write(createCheckpoint(10))
+        writer.finish()
+        directory.deleteRecursively()
+
+        assertNotNull(reportedError)
+        assertSame(reportedError, writer.writeError)
+    }
+
+    private fun createCheckpoint(completedIterations: Int): TrainingCheckpoint {
+        return TrainingCheckpoint(TrainingMethod.GRADIENT_DESCENT, OptimizerMethod.ADAM, 0.01f,
+            completedIterations, FloatArray(3) { it.toFloat() }, FloatArray(6))
+    }
+}
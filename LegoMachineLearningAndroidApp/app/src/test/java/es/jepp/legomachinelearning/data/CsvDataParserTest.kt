@@ -0,0 +1,41 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+
+class CsvDataParserTest {
+    @Test
+    fun readRecord_reportsLineAndColumnOfMalformedInput() {
+        val pixels = ByteArray(3)
+        val parser = CsvDataParser("1;1;0;0;3;1,2.5E1,0,128,255\r\n\n1;1;0;0;3;1,50.0,0,x,255\n".byteInputStream())
+
+        assertTrue(parser.readRecord(pixels, 0, 3))
+        assertEquals(25f, parser.steeringAngle, 0f)
+        assertArrayEquals(byteArrayOf(0, 128.toByte(), 255.toByte()), pixels)
+
+        try {
+            parser.readRecord(pixels, 0, 3)
+            fail()
+        } catch (e: Exception) {
+            assertEquals("Malformed data file at line 3, column 20: expected a number.", e.message)
+        }
+    }
+
+    @Test
+    fun readRecord_reportsAStray0xFFByteInsteadOfEndingTheFile() {
+        val pixels = ByteArray(3)
+        val input = "1;1;0;0;3;1,50.0,0,128,255\n".toByteArray() + 0xFF.toByte() + "\n1;1;0;0;3;1,50.0,0,128,255\n".toByteArray()
+        val parser = CsvDataParser(input.inputStream())
+
+        assertTrue(parser.readRecord(pixels, 0, 3))
+        try {
+            parser.readRecord(pixels, 0, 3)
+            fail()
+        } catch (e: Exception) {
+            assertTrue(e.message!!.startsWith("Malformed data file at line 2, column 1:"))
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class CsvToDataConverterTest {
+    @Test
+    fun convertDataFromFileToPixelDataset_readsTheWrittenData() {
+        val dataset = TestData.generatePixelDataset(2000, 41L)
+        val csvFile = TestData.writeCsvDataFile(dataset)
+        val loaded = CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile)
+        csvFile.delete()
+
+        assertEquals(dataset.numberOfSamples, loaded.numberOfSamples)
+        assertArrayEquals(dataset.pixels, loaded.pixels)
+        assertArrayEquals(dataset.y, loaded.y, 1e-5f)
+    }
+
+    @Test
+    fun convertDataFromFileToPixelDataset_matchesSequentialForAnyNumberOfThreads() {
+        val csvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(40000, 43L))
+
+        val sequential = CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile, 1)
+        for (threads in intArrayOf(2, 4, 8)) {
+            val dataset = CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile, threads)
+            assertEquals(sequential.numberOfSamples, dataset.numberOfSamples)
+            assertArrayEquals(sequential.pixels, dataset.pixels)
+            assertArrayEquals(sequential.y, dataset.y, 0f)
+        }
+
+        csvFile.delete()
+    }
+}
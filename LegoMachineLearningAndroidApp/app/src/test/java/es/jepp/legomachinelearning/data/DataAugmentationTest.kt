@@ -0,0 +1,53 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class DataAugmentationTest {
+    private val numberOfPixels = TestData.NUMBER_OF_PIXELS
+
+    @Test
+    fun generateVariant_matchesMaterializedVariants() {
+        // Multi-row images that are wider than high, where mirroring has to work row by row
+        val dataset = TestData.generatePixelDataset(4000, 47L)
+        val augmentation = DataAugmentation.createDefault(10, numberOfPixels / 10)
+
+        val variants = augmentation.numberOfVariants
+        val materializedPixels = ByteArray(dataset.pixels.size * variants)
+        val materializedY = FloatArray(dataset.numberOfSamples * variants)
+        val variantPixels = ByteArray(numberOfPixels)
+        for (i in 0 until dataset.numberOfSamples) {
+            for (v in 0 until variants) {
+                augmentation.generateVariant(dataset.pixels, i * numberOfPixels, v, variantPixels)
+                System.arraycopy(variantPixels, 0, materializedPixels, (i * variants + v) * numberOfPixels, numberOfPixels)
+                materializedY[i * variants + v] = augmentation.getLabel(dataset.y[i], v)
+            }
+        }
+        val materialized = PixelDataset(dataset.numberOfSamples * variants, numberOfPixels, materializedPixels, materializedY)
+
+        val n = FeaturePipeline.DEFAULT.getNumberOfFeatures(numberOfPixels)
+        val theta = FloatArray(n) { 0.01f * (it % 7) }
+        val lazyEngine = PixelGradientEngine(dataset, FeaturePipeline.DEFAULT, augmentation)
+        val parallelEngine = ParallelGradientEngine(dataset, FeaturePipeline.DEFAULT, 2, 4, augmentation)
+        val materializedEngine = PixelGradientEngine(materialized)
+        val lazyGradient = FloatArray(n)
+        val parallelGradient = FloatArray(n)
+        val materializedGradient = FloatArray(n)
+
+        // The same samples are added in the same order
+        assertEquals(materializedEngine.computeGradientAndCost(theta, materializedGradient),
+            lazyEngine.computeGradientAndCost(theta, lazyGradient), 0f)
+        assertArrayEquals(materializedGradient, lazyGradient, 0f)
+        assertEquals(materializedEngine.computeGradientAndCost(theta, materializedGradient),
+            parallelEngine.computeGradientAndCost(theta, parallelGradient), 1e-6f)
+        assertArrayEquals(materializedGradient, parallelGradient, 1e-5f)
+        parallelEngine.shutdown()
+
+        val lazyStatistics = SufficientStatistics.fromPixelDataset(dataset, FeaturePipeline.DEFAULT, augmentation)
+        val materializedStatistics = SufficientStatistics.fromPixelDataset(materialized)
+        assertEquals(materializedStatistics.numberOfSamples, lazyStatistics.numberOfSamples)
+        assertArrayEquals(materializedStatistics.XtX, lazyStatistics.XtX, 0.0)
+        assertArrayEquals(materializedStatistics.Xty, lazyStatistics.Xty, 0.0)
+    }
+}
@@ -0,0 +1,76 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+
+class DatasetCacheTest {
+    @Test
+    fun getPixelDataset_hitsUntilTheFileChangesAndStaysWithinBudget() {
+        val csvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(20000, 44L))
+        val binaryFile = File.createTempFile("data", ".bin")
+        binaryFile.delete()
+        val datasetBytes = 20000L * (TestData.NUMBER_OF_PIXELS + 4)
+        val cache = DatasetCache(datasetBytes * 3 / 2)
+
+        val parsed = cache.getPixelDataset(csvFile, binaryFile)
+        cache.clear()
+        val fromDisk = cache.getPixelDataset(csvFile, binaryFile)
+        val fromMemory = cache.getPixelDataset(csvFile, binaryFile)
+
+        assertArrayEquals(parsed.pixels, fromDisk.pixels)
+        assertArrayEquals(parsed.y, fromDisk.y, 0f)
+        assertSame(fromDisk, fromMemory)
+        assertEquals(1, cache.numberOfHits)
+
+        // A changed file is loaded again and replaces its old entry
+        csvFile.appendText(csvFile.useLines { it.first() } + "\n")
+        csvFile.setLastModified(csvFile.lastModified() + 2000)
+        val changed = cache.getPixelDataset(csvFile, binaryFile)
+        assertEquals(20001, changed.numberOfSamples)
+        assertEquals(1, cache.getNumberOfEntries())
+
+        // A second file doesn't fit next to the first one, so the least recently used is dropped
+        val otherCsvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(20000, 45L))
+        cache.getPixelDataset(otherCsvFile)
+        assertEquals(1, cache.getNumberOfEntries())
+        assertTrue(cache.getTotalBytes() <= datasetBytes * 3 / 2)
+        assertNotSame(changed, cache.getPixelDataset(csvFile, binaryFile))
+
+        csvFile.delete()
+        binaryFile.delete()
+        otherCsvFile.delete()
+    }
+
+    @Test
+    fun getPixelDataset_convertsAgainWhenTheCsvFileChangedWithinTheSameTimestamp() {
+        val csvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(100, 46L))
+        val binaryFile = File.createTempFile("data", ".bin")
+        binaryFile.delete()
+        DatasetCache(0).getPixelDataset(csvFile, binaryFile)
+        assertTrue(BinaryDatasetConverter.readHeader(binaryFile).isConvertedFrom(csvFile))
+
+        // The data file changes in the same second the binary file was written, as on file systems with coarse timestamps
+        csvFile.appendText(csvFile.useLines { it.first() } + "\n")
+        csvFile.setLastModified(binaryFile.lastModified())
+        assertEquals(101, DatasetCache(0).getPixelDataset(csvFile, binaryFile).numberOfSamples)
+
+        // A binary file from before the source was stored in the header is converted again
+        val version2Bytes = binaryFile.readBytes()
+        version2Bytes[4] = 2
+        binaryFile.writeBytes(version2Bytes.copyOfRange(0, BinaryDatasetConverter.VERSION_2_HEADER_SIZE) +
+                version2Bytes.copyOfRange(BinaryDatasetConverter.HEADER_SIZE, version2Bytes.size))
+        assertFalse(BinaryDatasetConverter.readHeader(binaryFile).isConvertedFrom(csvFile))
+        assertEquals(101, BinaryDatasetConverter.readPixelDataset(binaryFile).numberOfSamples)
+        DatasetCache(0).getPixelDataset(csvFile, binaryFile)
+        assertEquals(BinaryDatasetConverter.VERSION, BinaryDatasetConverter.readHeader(binaryFile).version)
+
+        csvFile.delete()
+        binaryFile.delete()
+    }
+}
@@ -0,0 +1,60 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.io.File
+
+class DatasetWriterTest {
+    @Test
+    fun offerFrame_writesOneCsvLinePerFrame() {
+        val numberOfPixels = TestData.NUMBER_OF_PIXELS
+        val dataset = TestData.generatePixelDataset(500, 37L)
+        val frames = Array(dataset.numberOfSamples) { i ->
+            IntArray(numberOfPixels) { j -> dataset.pixels[i * numberOfPixels + j].toInt() and 0xFF }
+        }
+        val angles = FloatArray(dataset.numberOfSamples) { 50 + 50 * dataset.y[it] }
+
+        // The way CollectDataActivity used to write every frame
+        val expected = StringBuilder()
+        for (i in frames.indices) {
+            expected.append("10;5;0;100;640;2;0,${angles[i]}")
+            for (pixel in frames[i]) {
+                expected.append(",$pixel")
+            }
+            expected.append("\n")
+        }
+
+        val writerFile = File.createTempFile("data", ".csv")
+        val writer = DatasetWriter(writerFile, dropWhenFull = false)
+        for (i in frames.indices) {
+            writer.offerFrame(frames[i], angles[i], 10, 5, 0, 100, 640, 2)
+        }
+        writer.close()
+        val actual = writerFile.readText()
+        writerFile.delete()
+
+        assertNull(writer.writeError)
+        assertEquals(frames.size.toLong(), writer.numberOfWrittenFrames)
+        assertEquals(expected.toString(), actual)
+    }
+
+    @Test
+    fun offerFrame_copiesThePixelsSoTheCallerCanReuseItsArray() {
+        val file = File.createTempFile("data", ".csv")
+        val writer = DatasetWriter(file, queueCapacity = 2, batchSize = 1, dropWhenFull = false)
+        val pixels = IntArray(3)
+        for (i in 0 until 10) {
+            pixels.fill(i)
+            writer.offerFrame(pixels, 50f, 3, 1, 0, 0, 3, 1)
+        }
+        writer.close()
+        val lines = file.readLines()
+        file.delete()
+
+        assertEquals(10, lines.size)
+        for (i in 0 until 10) {
+            assertEquals("3;1;0;0;3;1;0,50.0,$i,$i,$i", lines[i])
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+class FeaturePipelineTest {
+    @Test
+    fun computeHypothesis_fusedKernelMatchesOnePassPerTransform() {
+        val numberOfPixels = 140
+        val random = Random(60L)
+        val pixels = ByteArray(numberOfPixels)
+        random.nextBytes(pixels)
+        val residual = 0.3f
+        val bias = BiasTransform
+        val pixel = PixelPowerTransform(1)
+        val squaredPixel = PixelPowerTransform(2)
+
+        // The pipelines that are polynomials get the fused kernel, the others are computed one transform after the other
+        val pipelines = arrayOf(
+            arrayOf(bias, pixel, squaredPixel),
+            arrayOf(bias, pixel, squaredPixel, PixelPowerTransform(3)),
+            arrayOf(pixel, squaredPixel),
+            arrayOf(bias, squaredPixel))
+        for (pipelineTransforms in pipelines) {
+            val pipeline = FeaturePipeline(*pipelineTransforms)
+            val numberOfFeatures = pipeline.getNumberOfFeatures(numberOfPixels)
+            val theta = FloatArray(numberOfFeatures) { random.nextFloat() - 0.5f }
+
+            var expectedHypothesis = 0f
+            val expectedGradientSums = FloatArray(numberOfFeatures)
+            var thetaOffset = 0
+            for (transform in pipelineTransforms) {
+                expectedHypothesis += transform.computeHypothesis(pixels, 0, numberOfPixels, theta, thetaOffset)
+                transform.accumulateGradientSums(pixels, 0, numberOfPixels, residual, expectedGradientSums, thetaOffset)
+                thetaOffset += transform.getNumberOfFeatures(numberOfPixels)
+            }
+
+            // A dataset of one sample whose label makes the residual exactly the one used above
+            val hypothesis = pipeline.computeHypothesis(pixels, theta)
+            val dataset = PixelDataset(1, numberOfPixels, pixels.copyOf(), floatArrayOf(hypothesis - residual))
+            val gradientSums = FloatArray(numberOfFeatures)
+            pipeline.accumulateGradientSums(dataset, theta, 0, 1, gradientSums)
+
+            assertEquals(expectedHypothesis, hypothesis, 1e-4f)
+            assertArrayEquals(expectedGradientSums, gradientSums, 1e-5f)
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class HyperparameterSweepTest {
+    @Test
+    fun runSweep_findsAtLeastTheCenterLearningRatesCost() {
+        val dataset = TestData.generatePixelDataset(2000, 17L)
+        val numberOfIterations = 700
+
+        val single = HyperparameterSweep(
+            dataset, listOf(HyperparameterSweep.Candidate(OptimizerMethod.GRADIENT_DESCENT, 0.1f)), numberOfIterations, 1)
+        val singleResult = single.runSweep()!!
+
+        val sweep = HyperparameterSweep(
+            dataset,
+            HyperparameterSweep.createLearningRateCandidates(OptimizerMethod.GRADIENT_DESCENT, 0.1f),
+            numberOfIterations,
+            Runtime.getRuntime().availableProcessors())
+        val best = sweep.runSweep()!!
+
+        assertEquals(numberOfIterations, singleResult.numberOfIterations)
+        assertTrue(best.cost <= singleResult.cost)
+    }
+
+    @Test
+    fun stopSweep_endsTheRunningRoundAndReportsTheEnd() {
+        val dataset = TestData.generatePixelDataset(2000, 18L)
+
+        // The first round alone would take minutes
+        val sweep = HyperparameterSweep(
+            dataset,
+            HyperparameterSweep.createLearningRateCandidates(OptimizerMethod.GRADIENT_DESCENT, 0.1f, 2),
+            10000000,
+            2)
+        val ended = CountDownLatch(1)
+        sweep.setIterationHandler(object : LinearRegression.LinearRegressionIterationHandler {
+            override fun afterEachIteration(totalNumberOfIterations: Int, currentIteration: Int, currentTrainCost: Float) {}
+
+            override fun afterAllIterations(theta: FloatArray) {
+                ended.countDown()
+            }
+
+            override fun trainError(errorMessage: String) {
+                ended.countDown()
+            }
+        })
+
+        sweep.doSweep()
+        Thread.sleep(100)
+        sweep.stopSweep()
+
+        assertTrue(ended.await(10, TimeUnit.SECONDS))
+    }
+}
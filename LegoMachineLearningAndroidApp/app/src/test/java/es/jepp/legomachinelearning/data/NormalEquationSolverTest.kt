@@ -0,0 +1,20 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class NormalEquationSolverTest {
+    @Test
+    fun solve_reachesAtLeastGradientDescentCost() {
+        for (m in intArrayOf(250, 1000, 4000)) {
+            val trainData = TestData.generateTrainData(m, 42L)
+
+            val gradientDescentTheta = TestData.runGradientDescent(ResidualGradientEngine(trainData.X, trainData.y))
+            val normalEquationTheta = NormalEquationSolver(SufficientStatistics.fromTrainData(trainData), 1e-6f).solve()
+
+            val gradientDescentCost = LinearRegressionTools.computeCost(trainData.X, trainData.y, gradientDescentTheta)
+            val normalEquationCost = LinearRegressionTools.computeCost(trainData.X, trainData.y, normalEquationTheta)
+            assertTrue("m=$m", normalEquationCost <= gradientDescentCost + 1e-4f)
+        }
+    }
+}
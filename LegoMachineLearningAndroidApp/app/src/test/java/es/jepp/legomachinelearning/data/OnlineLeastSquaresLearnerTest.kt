@@ -0,0 +1,90 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class OnlineLeastSquaresLearnerTest {
+    private val numberOfPixels = TestData.NUMBER_OF_PIXELS
+
+    @Test
+    fun offerFrame_approachesNormalEquation() {
+        val dataset = TestData.generatePixelDataset(3000, 19L)
+
+        // A budget no update comes near, so every frame is used
+        val learner = OnlineLeastSquaresLearner(numberOfPixels, 1000000000L)
+        val grayscalePixels = IntArray(numberOfPixels)
+        for (i in 0 until dataset.numberOfSamples) {
+            offerFrameAndWait(learner, dataset, i, grayscalePixels)
+        }
+        val onlineTheta = learner.finish()
+
+        val statistics = SufficientStatistics.fromPixelDataset(dataset)
+        val engine = GramGradientEngine(statistics)
+        val onlineCost = engine.computeGradientAndCost(onlineTheta, FloatArray(onlineTheta.size))
+        val exactTheta = NormalEquationSolver(statistics).solve()
+        val exactCost = engine.computeGradientAndCost(exactTheta, FloatArray(exactTheta.size))
+
+        assertEquals(3000, learner.numberOfSamples)
+        assertEquals(0, learner.numberOfSkippedFrames)
+        assertTrue(onlineCost <= exactCost * 1.5f)
+    }
+
+    @Test
+    fun offerFrame_skipsFramesWhenAnUpdateTakesLongerThanTheBudget() {
+        val dataset = TestData.generatePixelDataset(10, 20L)
+
+        // Any update takes longer than a nanosecond, so after the first one only every k-th frame is used, with k far above 10
+        val learner = OnlineLeastSquaresLearner(numberOfPixels, 1L)
+        val grayscalePixels = IntArray(numberOfPixels)
+        assertTrue(offerFrameAndWait(learner, dataset, 0, grayscalePixels))
+        for (i in 1 until dataset.numberOfSamples) {
+            assertFalse(offerFrameAndWait(learner, dataset, i, grayscalePixels))
+        }
+        learner.finish()
+
+        assertEquals(1, learner.numberOfSamples)
+        assertEquals(9, learner.numberOfSkippedFrames)
+    }
+
+    @Test
+    fun offerFrame_learnsAUsedFrameTogetherWithItsMirror() {
+        val dataset = TestData.generatePixelDataset(10, 21L)
+        val mirror = DataAugmentation(10, numberOfPixels / 10, arrayOf(
+            DataAugmentation.Variant.ORIGINAL,
+            DataAugmentation.Variant(true, 0, 0)))
+
+        // The frame and its mirror are skipped or used together, whatever the stride
+        val learner = OnlineLeastSquaresLearner(numberOfPixels, 1L, augmentation = mirror)
+        val grayscalePixels = IntArray(numberOfPixels)
+        assertTrue(offerFrameAndWait(learner, dataset, 0, grayscalePixels))
+        for (i in 1 until dataset.numberOfSamples) {
+            assertFalse(offerFrameAndWait(learner, dataset, i, grayscalePixels))
+        }
+        learner.finish()
+
+        assertEquals(2, learner.numberOfSamples)
+        assertEquals(9, learner.numberOfSkippedFrames)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun constructor_refusesMoreFeaturesThanTheCovarianceMatrixIsSizedFor() {
+        OnlineLeastSquaresLearner(OnlineLeastSquaresLearner.MAX_NUMBER_OF_FEATURES, 1L)
+    }
+
+    /**
+     * Offers sample [i] and waits until the background thread learned it, so the test doesn't depend on how fast that thread is.
+     */
+    private fun offerFrameAndWait(learner: OnlineLeastSquaresLearner, dataset: PixelDataset, i: Int, grayscalePixels: IntArray): Boolean {
+        for (j in 0 until numberOfPixels) {
+            grayscalePixels[j] = dataset.pixels[i * numberOfPixels + j].toInt() and 0xFF
+        }
+        val numberOfSamples = learner.numberOfSamples
+        val isUsed = learner.offerFrame(grayscalePixels, 50 + 50 * dataset.y[i])
+        while (isUsed && learner.numberOfSamples == numberOfSamples) {
+            Thread.yield()
+        }
+        return isUsed
+    }
+}
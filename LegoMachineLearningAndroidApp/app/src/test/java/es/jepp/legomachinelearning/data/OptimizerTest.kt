@@ -0,0 +1,24 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class OptimizerTest {
+    @Test
+    fun optimizers_convergeAtLeastAsFarAsGradientDescent() {
+        val trainData = TestData.generateTrainData(1000, 3L)
+        val gradientEngine = GramGradientEngine(SufficientStatistics.fromTrainData(trainData))
+
+        val costs = OptimizerMethod.values().associate { optimizerMethod ->
+            // Nesterov momentum has a smaller stable learning rate than plain gradient descent, so it may diverge here
+            val theta = TestData.tryGradientDescent(gradientEngine, optimizerMethod.createOptimizer(TestData.LEARNING_RATE))
+            val cost = if (theta == null) Float.NaN else LinearRegressionTools.computeCost(trainData.X, trainData.y, theta)
+            optimizerMethod to cost
+        }
+
+        val gradientDescentCost = costs.getValue(OptimizerMethod.GRADIENT_DESCENT)
+        for (optimizerMethod in arrayOf(OptimizerMethod.MOMENTUM, OptimizerMethod.BARZILAI_BORWEIN)) {
+            assertTrue(optimizerMethod.toString(), costs.getValue(optimizerMethod) <= gradientDescentCost)
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class ParallelGradientEngineTest {
+    @Test
+    fun computeGradientAndCost_matchesSequentialForAnyNumberOfThreads() {
+        val trainData = TestData.generateTrainData(20000, 7L)
+        val theta = FloatArray(TestData.NUMBER_OF_PIXELS * 2 + 1) { 0.01f * it }
+
+        val sequentialGradient = FloatArray(theta.size)
+        val sequentialCost = ResidualGradientEngine(trainData.X, trainData.y).computeGradientAndCost(theta, sequentialGradient)
+
+        var referenceGradient: FloatArray? = null
+        for (numberOfThreads in intArrayOf(1, 2, 4, 8)) {
+            val engine = ParallelGradientEngine(trainData.X, trainData.y, numberOfThreads, 16)
+            val gradient = FloatArray(theta.size)
+            val cost = engine.computeGradientAndCost(theta, gradient)
+            engine.shutdown()
+
+            if (referenceGradient == null) {
+                referenceGradient = gradient.copyOf()
+            }
+
+            // The same shards are reduced in the same order, so the result must not depend on the number of threads
+            assertArrayEquals(referenceGradient, gradient, 0f)
+            assertEquals(sequentialCost, cost, 1e-5f)
+            assertArrayEquals(sequentialGradient, gradient, 1e-4f)
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+class PixelGradientEngineTest {
+    private val numberOfPixels = TestData.NUMBER_OF_PIXELS
+
+    @Test
+    fun computeGradientAndCost_matchesMaterializedFeatures() {
+        val m = 20000
+        val random = Random(13L)
+        val pixels = ByteArray(m * numberOfPixels)
+        random.nextBytes(pixels)
+        val y = FloatArray(m) { 2 * random.nextFloat() - 1 }
+        val pixelDataset = PixelDataset(m, numberOfPixels, pixels, y)
+
+        val n = FeaturePipeline.DEFAULT.getNumberOfFeatures(numberOfPixels)
+        val X = Array(m) { FloatArray(n) }
+        for (i in 0 until m) {
+            FeaturePipeline.DEFAULT.generateFeatures(pixels, i * numberOfPixels, numberOfPixels, X[i])
+        }
+
+        val theta = FloatArray(n) { 0.01f * it }
+        val pixelGradient = FloatArray(n)
+        val materializedGradient = FloatArray(n)
+        assertEquals(
+            ResidualGradientEngine(X, y).computeGradientAndCost(theta, materializedGradient),
+            PixelGradientEngine(pixelDataset).computeGradientAndCost(theta, pixelGradient),
+            1e-3f)
+        assertArrayEquals(materializedGradient, pixelGradient, 1e-3f)
+    }
+}
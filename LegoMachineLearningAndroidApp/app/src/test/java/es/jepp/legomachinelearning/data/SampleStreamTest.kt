@@ -0,0 +1,157 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class SampleStreamTest {
+    private lateinit var dataset: PixelDataset
+    private lateinit var csvFile: File
+    private lateinit var binaryFile: File
+    private lateinit var trainData: TrainData
+
+    @Before
+    fun writeDataFiles() {
+        dataset = TestData.generatePixelDataset(10000, 48L)
+        csvFile = TestData.writeCsvDataFile(dataset)
+        binaryFile = File.createTempFile("data", ".bin")
+        BinaryDatasetConverter.convertCsvFileToBinaryFile(csvFile, binaryFile)
+        trainData = CsvToDataConverter.convertDataFromFile(csvFile)
+    }
+
+    @After
+    fun deleteDataFiles() {
+        csvFile.delete()
+        binaryFile.delete()
+    }
+
+    @Test
+    fun sources_agreeWithTrainDataAcrossResets() {
+        val reference = readAll(TrainDataSampleStream(trainData))
+        val sources = listOf(
+            PixelDatasetSampleStream(dataset),
+            CsvSampleStream(csvFile),
+            BinaryFileSampleStream(binaryFile, FeaturePipeline.DEFAULT, 1000),
+            PrefetchingSampleStream(CsvSampleStream(csvFile), 16))
+        for (stream in sources) {
+            // Twice, so reset is covered as well
+            for (pass in 1..2) {
+                val samples = readAll(stream)
+                assertEquals(reference.size, samples.size)
+                for (i in samples.indices) {
+                    assertArrayEquals(reference[i].x, samples[i].x, 0f)
+                    assertEquals(reference[i].y, samples[i].y, 1e-6f)
+                }
+            }
+            stream.close()
+        }
+
+        val theta = FloatArray(trainData.X[0].size) { 0.01f }
+        assertEquals(LinearRegressionTools.computeCost(trainData.X, trainData.y, theta),
+            LinearRegressionTools.computeCost(CsvSampleStream(csvFile), theta), 1e-4f)
+    }
+
+    @Test
+    fun shuffledAndShardedStreams_splitTheSamplesWithoutOverlap() {
+        val reference = readAll(TrainDataSampleStream(trainData))
+
+        // A shuffled pass is a permutation, and the shards split the stream without overlap
+        val labels = reference.map { it.y }.sorted()
+        assertEquals(labels, readAll(ShuffledSampleStream(TrainDataSampleStream(trainData), 256, 1L)).map { it.y }.sorted())
+        val shards = (0 until 3).map { readAll(ShardedSampleStream(TrainDataSampleStream(trainData), it, 3)) }
+        assertEquals(labels, shards.flatten().map { it.y }.sorted())
+        assertEquals(reference[4].y, shards[1][1].y, 0f)
+    }
+
+    @Test
+    fun prefetchingSampleStream_trainsTheSameAsTheStreamItReads() {
+        val plainTheta = trainFor(ShuffledSampleStream(CsvSampleStream(csvFile), 1024, 0L))
+        val prefetchedTheta = trainFor(PrefetchingSampleStream(ShuffledSampleStream(CsvSampleStream(csvFile), 1024, 0L)))
+        assertArrayEquals(plainTheta, prefetchedTheta, 0f)
+    }
+
+    @Test(timeout = 10000)
+    fun prefetchingSampleStream_keepsItsSamplesWhenTheSourceFails() {
+        // The source fails on its third sample the first time through, and the only sample must not get lost in that
+        val failingSource = object : SampleStream {
+            val source = TrainDataSampleStream(trainData)
+            var isFailing = true
+            var index = 0
+
+            override val numberOfFeatures: Int
+                get() = source.numberOfFeatures
+
+            override fun next(sample: Sample): Boolean {
+                if (isFailing && index == 2) {
+                    isFailing = false
+                    throw Exception("Read error")
+                }
+                index++
+                return source.next(sample)
+            }
+
+            override fun reset() {
+                source.reset()
+                index = 0
+            }
+        }
+        val stream = PrefetchingSampleStream(failingSource, 1)
+
+        val sample = Sample(stream.numberOfFeatures)
+        stream.reset()
+        assertTrue(stream.next(sample))
+        assertTrue(stream.next(sample))
+        try {
+            stream.next(sample)
+            fail()
+        } catch (e: Exception) {
+            assertEquals("Read error", e.message)
+        }
+
+        assertEquals(trainData.y.size, readAll(stream).size)
+        stream.close()
+    }
+
+    private fun readAll(stream: SampleStream): List<Sample> {
+        val samples = ArrayList<Sample>()
+        stream.reset()
+        while (true) {
+            val sample = Sample(stream.numberOfFeatures)
+            if (!stream.next(sample)) {
+                break
+            }
+            samples.add(sample)
+        }
+        return samples
+    }
+
+    private fun trainFor(stream: SampleStream): FloatArray {
+        val trainer = StreamingSgdTrainer(stream, TestData.LEARNING_RATE, 3)
+        trainer.generateTheta()
+        val latch = CountDownLatch(1)
+        var result: FloatArray? = null
+        trainer.setIterationHandler(object : LinearRegression.LinearRegressionIterationHandler {
+            override fun afterEachIteration(totalNumberOfIterations: Int, currentIteration: Int, currentTrainCost: Float) {}
+
+            override fun afterAllIterations(theta: FloatArray) {
+                result = theta
+                latch.countDown()
+            }
+
+            override fun trainError(errorMessage: String) {
+                latch.countDown()
+            }
+        })
+
+        trainer.doTraining()
+        assertTrue(latch.await(5, TimeUnit.MINUTES))
+        return result!!
+    }
+}
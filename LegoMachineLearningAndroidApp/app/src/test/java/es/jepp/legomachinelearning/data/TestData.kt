@@ -0,0 +1,113 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertTrue
+import java.io.File
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Synthetic data shaped like the collected data, shared by the tests: images of [NUMBER_OF_PIXELS] pixels
+ * whose label is a noisy linear function of the normalized pixels.
+ */
+object TestData {
+    const val NUMBER_OF_PIXELS = 50
+    const val LEARNING_RATE = 0.1f
+    const val NUMBER_OF_ITERATIONS = 300
+
+    fun generatePixelDataset(m: Int, seed: Long): PixelDataset {
+        val random = Random(seed)
+        val trueTheta = FloatArray(NUMBER_OF_PIXELS) { random.nextFloat() - 0.5f }
+
+        val pixels = ByteArray(m * NUMBER_OF_PIXELS)
+        random.nextBytes(pixels)
+        val y = FloatArray(m)
+        for (i in 0 until m) {
+            var h = 0f
+            for (j in 0 until NUMBER_OF_PIXELS) {
+                h += trueTheta[j] * (1 - (pixels[i * NUMBER_OF_PIXELS + j].toInt() and 0xFF) / 255f)
+            }
+            y[i] = Math.max(-1f, Math.min(1f, h + 0.05f * random.nextGaussian().toFloat()))
+        }
+
+        return PixelDataset(m, NUMBER_OF_PIXELS, pixels, y)
+    }
+
+    /**
+     * The bias, the pixels and the squared pixels of random images, laid out like [FeaturePipeline.DEFAULT] does.
+     */
+    fun generateTrainData(m: Int, seed: Long): TrainData {
+        val random = Random(seed)
+        val trueTheta = FloatArray(NUMBER_OF_PIXELS) { random.nextFloat() - 0.5f }
+
+        val X = Array(m) { FloatArray(NUMBER_OF_PIXELS * 2 + 1) }
+        val y = FloatArray(m)
+        for (i in 0 until m) {
+            val x = X[i]
+            x[0] = 1f
+            var h = 0f
+            for (j in 1..NUMBER_OF_PIXELS) {
+                x[j] = random.nextFloat()
+                x[j + NUMBER_OF_PIXELS] = x[j] * x[j]
+                h += trueTheta[j - 1] * x[j]
+            }
+            y[i] = Math.max(-1f, Math.min(1f, h + 0.05f * random.nextGaussian().toFloat()))
+        }
+
+        return TrainData(X, y)
+    }
+
+    /**
+     * Writes the dataset in the format CollectDataActivity uses, with the geometry of a 10 pixels wide image.
+     */
+    fun writeCsvDataFile(dataset: PixelDataset): File {
+        val file = File.createTempFile("data", ".csv")
+        file.bufferedWriter().use { writer ->
+            for (i in 0 until dataset.numberOfSamples) {
+                writer.write("10;${NUMBER_OF_PIXELS / 10};0;100;640;2,${50 + 50 * dataset.y[i]}")
+                for (j in 0 until NUMBER_OF_PIXELS) {
+                    writer.write(",${dataset.pixels[i * NUMBER_OF_PIXELS + j].toInt() and 0xFF}")
+                }
+                writer.write("\n")
+            }
+        }
+        return file
+    }
+
+    /**
+     * Runs [iterations] iterations with [optimizer] and returns theta, or null if training failed.
+     * [configure] is called after theta is generated and before training starts.
+     */
+    fun tryGradientDescent(gradientEngine: GradientEngine,
+                           optimizer: Optimizer,
+                           iterations: Int = NUMBER_OF_ITERATIONS,
+                           configure: (LinearRegression) -> Unit = {}): FloatArray? {
+        val linearRegression = LinearRegression(gradientEngine, optimizer, iterations)
+        linearRegression.generateTheta()
+        configure(linearRegression)
+
+        val latch = CountDownLatch(1)
+        var result: FloatArray? = null
+        linearRegression.setIterationHandler(object : LinearRegression.LinearRegressionIterationHandler {
+            override fun afterEachIteration(totalNumberOfIterations: Int, currentIteration: Int, currentTrainCost: Float) {}
+
+            override fun afterAllIterations(theta: FloatArray) {
+                result = theta
+                latch.countDown()
+            }
+
+            override fun trainError(errorMessage: String) {
+                latch.countDown()
+            }
+        })
+
+        linearRegression.doGradientDescent()
+        assertTrue(latch.await(5, TimeUnit.MINUTES))
+
+        return result
+    }
+
+    fun runGradientDescent(gradientEngine: GradientEngine): FloatArray {
+        return tryGradientDescent(gradientEngine, GradientDescentOptimizer(LEARNING_RATE))!!
+    }
+}
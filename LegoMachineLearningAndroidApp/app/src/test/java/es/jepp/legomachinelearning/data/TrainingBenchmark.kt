@@ -0,0 +1,251 @@
+package es.jepp.legomachinelearning.data
+
+import es.jepp.legomachinelearning.imagelogic.FrameBufferPool
+import es.jepp.legomachinelearning.imagelogic.LumaRegionSampler
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Test
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.Random
+
+/**
+ * Measures the training, loading and driving code and prints the numbers. The timings depend on the machine and
+ * take minutes, so the class is ignored in normal test runs; remove [Ignore] locally to run it.
+ * The unit tests cover the behaviour; the asserts here only check that the compared variants agree.
+ */
+@Ignore("Benchmark, run by hand")
+class TrainingBenchmark {
+    private val numberOfPixels = TestData.NUMBER_OF_PIXELS
+    private val threadCounts = intArrayOf(1, 2, 4, 8)
+
+    @Test
+    fun gradientDescentAgainstNormalEquation() {
+        for (m in intArrayOf(250, 1000, 4000, 16000)) {
+            val trainData = TestData.generateTrainData(m, 42L)
+
+            var start = System.nanoTime()
+            val gradientDescentTheta = TestData.runGradientDescent(ResidualGradientEngine(trainData.X, trainData.y))
+            val gradientDescentMillis = (System.nanoTime() - start) / 1e6
+
+            start = System.nanoTime()
+            val normalEquationTheta = NormalEquationSolver(SufficientStatistics.fromTrainData(trainData), 1e-6f).solve()
+            val normalEquationMillis = (System.nanoTime() - start) / 1e6
+
+            val gradientDescentCost = LinearRegressionTools.computeCost(trainData.X, trainData.y, gradientDescentTheta)
+            val normalEquationCost = LinearRegressionTools.computeCost(trainData.X, trainData.y, normalEquationTheta)
+            println("m=$m gradient descent: ${"%.1f".format(gradientDescentMillis)} ms cost $gradientDescentCost, " +
+                    "normal equation: ${"%.1f".format(normalEquationMillis)} ms cost $normalEquationCost")
+
+            assertTrue(normalEquationCost <= gradientDescentCost + 1e-4f)
+        }
+    }
+
+    @Test
+    fun parallelGradientEngineSpeedUp() {
+        val dataset = TestData.generatePixelDataset(20000, 7L)
+        val theta = FloatArray(FeaturePipeline.DEFAULT.getNumberOfFeatures(numberOfPixels)) { 0.01f * it }
+        println("available processors: ${Runtime.getRuntime().availableProcessors()}")
+
+        var referenceGradient: FloatArray? = null
+        var singleThreadMillis = 0.0
+        for (numberOfThreads in threadCounts) {
+            // The same number of shards for every thread count, so the gradients must be equal
+            val engine = ParallelGradientEngine(dataset, FeaturePipeline.DEFAULT, numberOfThreads, 16)
+            val gradient = FloatArray(theta.size)
+            val millis = measureMillisPerCall(20) { engine.computeGradientAndCost(theta, gradient) }
+            engine.shutdown()
+
+            if (referenceGradient == null) {
+                referenceGradient = gradient.copyOf()
+                singleThreadMillis = millis
+            }
+            println("threads=$numberOfThreads ${"%.2f".format(millis)} ms per epoch, " +
+                    "speed-up ${"%.2f".format(singleThreadMillis / millis)}")
+
+            assertArrayEquals(referenceGradient, gradient, 0f)
+        }
+    }
+
+    @Test
+    fun pixelDatasetMemoryAndThroughput() {
+        val dataset = TestData.generatePixelDataset(20000, 11L)
+        val trainData = CsvToDataConverter.convertDataFromFile(TestData.writeCsvDataFile(dataset).also { it.deleteOnExit() })
+        val theta = FloatArray(FeaturePipeline.DEFAULT.getNumberOfFeatures(numberOfPixels)) { 0.01f * it }
+
+        // Estimated heap use with 16 byte array headers and 4 byte references
+        val m = dataset.numberOfSamples.toLong()
+        val n = theta.size.toLong()
+        println("stored samples: feature arrays ${(16 + 4 * m + m * (16 + 4 * n)) / 1024} KiB in ${m + 1} objects, " +
+                "pixel dataset ${(16 + m * numberOfPixels) / 1024} KiB in 1 object")
+
+        val jaggedEngine = ResidualGradientEngine(trainData.X, trainData.y)
+        val pixelEngine = PixelGradientEngine(dataset, FeaturePipeline.DEFAULT)
+        val jaggedGradient = FloatArray(theta.size)
+        val pixelGradient = FloatArray(theta.size)
+        val jaggedMillis = measureMillisPerCall(50) { jaggedEngine.computeGradientAndCost(theta, jaggedGradient) }
+        val pixelMillis = measureMillisPerCall(50) { pixelEngine.computeGradientAndCost(theta, pixelGradient) }
+        println("epoch: feature arrays ${"%.2f".format(jaggedMillis)} ms, pixel dataset ${"%.2f".format(pixelMillis)} ms")
+
+        assertArrayEquals(jaggedGradient, pixelGradient, 1e-3f)
+    }
+
+    @Test
+    fun binaryDatasetLoadTimeAndFileSize() {
+        val csvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(20000, 31L))
+        val binaryFile = File.createTempFile("data", ".bin")
+
+        var start = System.nanoTime()
+        BinaryDatasetConverter.convertCsvFileToBinaryFile(csvFile, binaryFile)
+        val convertMillis = (System.nanoTime() - start) / 1e6
+
+        // Warm up both loaders before timing them
+        CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile)
+        BinaryDatasetConverter.readPixelDataset(binaryFile)
+
+        start = System.nanoTime()
+        val fromCsv = CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile)
+        val csvMillis = (System.nanoTime() - start) / 1e6
+        start = System.nanoTime()
+        val fromBinary = BinaryDatasetConverter.readPixelDataset(binaryFile)
+        val binaryMillis = (System.nanoTime() - start) / 1e6
+        println("csv: ${csvFile.length() / 1024} KiB loaded in ${"%.1f".format(csvMillis)} ms; " +
+                "binary: ${binaryFile.length() / 1024} KiB loaded in ${"%.1f".format(binaryMillis)} ms " +
+                "(converted in ${"%.1f".format(convertMillis)} ms)")
+        csvFile.delete()
+        binaryFile.delete()
+
+        assertArrayEquals(fromCsv.pixels, fromBinary.pixels)
+        assertArrayEquals(fromCsv.y, fromBinary.y, 0f)
+    }
+
+    @Test
+    fun csvDataParserThroughput() {
+        val csvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(20000, 41L))
+        val megabytes = csvFile.length() / (1024.0 * 1024.0)
+
+        // Parsing every line with split and toFloat, the way the data file used to be read
+        val parseWithStrings = {
+            val pixels = ArrayList<Byte>()
+            val y = ArrayList<Float>()
+            csvFile.forEachLine { line ->
+                val values = line.split(",")
+                y.add((values[1].toFloat() - 50) / 50)
+                for (j in 2 until values.size) {
+                    pixels.add(values[j].toFloat().toInt().toByte())
+                }
+            }
+            PixelDataset(y.size, numberOfPixels, pixels.toByteArray(), y.toFloatArray())
+        }
+
+        parseWithStrings()
+        CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile)
+
+        var start = System.nanoTime()
+        val fromStrings = parseWithStrings()
+        val stringSeconds = (System.nanoTime() - start) / 1e9
+        start = System.nanoTime()
+        val fromParser = CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile)
+        val parserSeconds = (System.nanoTime() - start) / 1e9
+        csvFile.delete()
+        println("parsing ${"%.1f".format(megabytes)} MB: split and toFloat ${"%.1f".format(megabytes / stringSeconds)} MB/s, " +
+                "byte parser ${"%.1f".format(megabytes / parserSeconds)} MB/s")
+
+        assertArrayEquals(fromStrings.pixels, fromParser.pixels)
+        assertArrayEquals(fromStrings.y, fromParser.y, 1e-6f)
+    }
+
+    @Test
+    fun parallelCsvLoadingSpeedUp() {
+        val csvFile = TestData.writeCsvDataFile(TestData.generatePixelDataset(40000, 43L))
+        println("available processors: ${Runtime.getRuntime().availableProcessors()}, file ${csvFile.length() / 1024} KiB")
+
+        CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile, 4)
+
+        var sequential: PixelDataset? = null
+        var sequentialMillis = 0.0
+        for (numberOfThreads in threadCounts) {
+            val start = System.nanoTime()
+            val dataset = CsvToDataConverter.convertDataFromFileToPixelDataset(csvFile, numberOfThreads)
+            val millis = (System.nanoTime() - start) / 1e6
+
+            if (sequential == null) {
+                sequential = dataset
+                sequentialMillis = millis
+            }
+            println("threads=$numberOfThreads loaded in ${"%.1f".format(millis)} ms, " +
+                    "speed-up ${"%.2f".format(sequentialMillis / millis)}")
+
+            assertArrayEquals(sequential.pixels, dataset.pixels)
+        }
+        csvFile.delete()
+    }
+
+    @Test
+    fun drivingLoopAllocations() {
+        val frameWidth = 640
+        val frameHeight = 480
+        val frame = ByteArray(frameWidth * frameHeight * 3 / 2)
+        Random(50L).nextBytes(frame)
+        val sampler = LumaRegionSampler(1080, 1920, 0, 1700, 1080, 1, 140)
+        val pool = FrameBufferPool(sampler.outputWidth, 1, 3)
+        val theta = FloatArray(FeaturePipeline.DEFAULT.getNumberOfFeatures(sampler.outputWidth)) { 0.001f * (it % 5) }
+        var steeringAngle = 0f
+
+        // Capture, infer and show one frame with the pooled buffers
+        val pooledLoop = {
+            val buffer = pool.acquire()!!
+            sampler.sample(frame, frameWidth, frameHeight, 90, buffer.pixels)
+            steeringAngle = FeaturePipeline.DEFAULT.computeHypothesis(buffer.pixels, theta) * 50f + 50f
+            buffer.updatePreviewColors()
+            pool.release(buffer)
+        }
+        // The same with new arrays for every frame, like before the pool
+        val allocatingLoop = {
+            val luma = ByteArray(sampler.outputWidth)
+            sampler.sample(frame, frameWidth, frameHeight, 90, luma)
+            val grayscalePixels = IntArray(luma.size) { luma[it].toInt() and 0xFF }
+            val previewColors = IntArray(luma.size) { (0xFF shl 24) or (grayscalePixels[it] * 0x010101) }
+            val pixels = ByteArray(grayscalePixels.size)
+            CsvToDataConverter.convertGrayscalePixelsToBytes(grayscalePixels, pixels)
+            steeringAngle = FeaturePipeline.DEFAULT.computeHypothesis(pixels, theta) * 50f + 50f + previewColors.size * 0f
+        }
+
+        val pooledBytes = measureAllocatedBytesPerCall(10000, pooledLoop)
+        val allocatingBytes = measureAllocatedBytesPerCall(10000, allocatingLoop)
+        println("bytes allocated per frame: pooled ${"%.1f".format(pooledBytes)}, new arrays ${"%.1f".format(allocatingBytes)}, " +
+                "${pool.numberOfAllocatedBuffers} buffers for ${pool.numberOfAcquiredBuffers} frames")
+
+        assertEquals(1, pool.numberOfAllocatedBuffers)
+        assertTrue(steeringAngle.isFinite())
+    }
+
+    private fun measureMillisPerCall(numberOfCalls: Int, call: () -> Unit): Double {
+        // Warm up so the JIT has compiled the kernel before it is measured
+        for (i in 1..numberOfCalls) {
+            call()
+        }
+
+        val start = System.nanoTime()
+        for (i in 1..numberOfCalls) {
+            call()
+        }
+        return (System.nanoTime() - start) / 1e6 / numberOfCalls
+    }
+
+    private fun measureAllocatedBytesPerCall(numberOfCalls: Int, call: () -> Unit): Double {
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        for (i in 1..numberOfCalls) {
+            call()
+        }
+
+        val start = threads.getThreadAllocatedBytes(threadId)
+        for (i in 1..numberOfCalls) {
+            call()
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - start).toDouble() / numberOfCalls
+    }
+}
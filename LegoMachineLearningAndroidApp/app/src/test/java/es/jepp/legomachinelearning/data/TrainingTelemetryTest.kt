@@ -0,0 +1,51 @@
+package es.jepp.legomachinelearning.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class TrainingTelemetryTest {
+    @Test
+    fun afterIterationWindow_boundsUpdatesAndKeepsEveryCost() {
+        val engine = PixelGradientEngine(TestData.generatePixelDataset(200, 29L))
+        val iterations = 20000
+        val intervalMillis = 50L
+
+        val windows = mutableListOf<TrainingTelemetry.Window>()
+        val latch = CountDownLatch(1)
+        val telemetry = TrainingTelemetry(intervalMillis, object : TrainingTelemetry.TelemetryHandler {
+            override fun afterIterationWindow(window: TrainingTelemetry.Window) {
+                windows.add(window)
+            }
+
+            override fun afterAllIterations(theta: FloatArray) {
+                latch.countDown()
+            }
+
+            override fun trainError(errorMessage: String) {
+                latch.countDown()
+            }
+        })
+
+        val linearRegression = LinearRegression(engine, 0.1f, iterations)
+        linearRegression.generateTheta()
+        linearRegression.setIterationHandler(telemetry)
+        linearRegression.setCostReportInterval(10)
+
+        val startTime = System.nanoTime()
+        linearRegression.doGradientDescent()
+        assertTrue(latch.await(5, TimeUnit.MINUTES))
+        val elapsedMillis = (System.nanoTime() - startTime) / 1000000
+
+        assertTrue(windows.size <= elapsedMillis / intervalMillis + 2)
+        assertEquals(iterations, windows.last().lastIteration)
+        for (i in 1 until windows.size) {
+            assertEquals(windows[i - 1].lastIteration + 10, windows[i].firstIteration)
+        }
+        for (window in windows) {
+            assertTrue(window.minimumCost <= window.meanCost)
+        }
+    }
+}
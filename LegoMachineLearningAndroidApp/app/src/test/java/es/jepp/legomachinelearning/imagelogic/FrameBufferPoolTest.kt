@@ -0,0 +1,72 @@
+package es.jepp.legomachinelearning.imagelogic
+
+import es.jepp.legomachinelearning.data.FeaturePipeline
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.util.Random
+
+class FrameBufferPoolTest {
+    @Test
+    fun acquire_drivingLoopAllocatesNothingOnceWarm() {
+        val frameWidth = 640
+        val frameHeight = 480
+        val frame = ByteArray(frameWidth * frameHeight * 3 / 2)
+        Random(50L).nextBytes(frame)
+        val sampler = LumaRegionSampler(1080, 1920, 0, 1700, 1080, 1, 140)
+        val pool = FrameBufferPool(sampler.outputWidth, 1, 3)
+        val theta = FloatArray(FeaturePipeline.DEFAULT.getNumberOfFeatures(sampler.outputWidth)) { 0.001f * (it % 5) }
+        var steeringAngle = 0f
+
+        // Capture, infer and show one frame, the way the camera service and the drive activity hand it on
+        val loop = {
+            val buffer = pool.acquire()!!
+            sampler.sample(frame, frameWidth, frameHeight, 90, buffer.pixels)
+            steeringAngle = FeaturePipeline.DEFAULT.computeHypothesis(buffer.pixels, theta) * 50f + 50f
+            buffer.updatePreviewColors()
+            pool.release(buffer)
+        }
+
+        // The allocation counter itself allocates a few bytes, far less than one array per frame
+        assertTrue(measureAllocatedBytesPerCall(10000, loop) < 1.0)
+        assertEquals(1, pool.numberOfAllocatedBuffers)
+        assertTrue(steeringAngle.isFinite())
+    }
+
+    @Test
+    fun release_buffersAreBoundedAndOwned() {
+        val pool = FrameBufferPool(16, 1, 3)
+
+        // Frames are dropped when every buffer is out, and a second release is refused
+        val buffers = Array(3) { pool.acquire() }
+        assertNull(pool.acquire())
+        assertEquals(1L, pool.numberOfDroppedFrames)
+        assertEquals(3, pool.getNumberOfBuffersInUse())
+        for (buffer in buffers) {
+            pool.release(buffer!!)
+        }
+        try {
+            pool.release(buffers[0]!!)
+            fail("A buffer can't be released twice")
+        } catch (e: IllegalArgumentException) {
+        }
+        assertEquals(0, pool.getNumberOfBuffersInUse())
+    }
+
+    private fun measureAllocatedBytesPerCall(numberOfCalls: Int, call: () -> Unit): Double {
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        for (i in 1..numberOfCalls) {
+            call()
+        }
+
+        val start = threads.getThreadAllocatedBytes(threadId)
+        for (i in 1..numberOfCalls) {
+            call()
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - start).toDouble() / numberOfCalls
+    }
+}
@@ -0,0 +1,137 @@
+package es.jepp.legomachinelearning.imagelogic
+
+import es.jepp.legomachinelearning.data.DownsamplingMethod
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.util.Random
+
+class LumaRegionSamplerTest {
+    // A portrait view showing a landscape sensor frame, like a phone held upright.
+    // The view is narrower than the frame, so the frame is scaled by 3 to fill the view height
+    // and 180 view pixels of it are cropped on the left and right
+    private val viewWidth = 1080
+    private val viewHeight = 1920
+    private val displayWidth = 480
+    private val displayHeight = 640
+    private val scale = 3
+    private val cropX = 180
+
+    @Test
+    fun sample_readsTheRegionFromAnyRotation() {
+        val random = Random(49L)
+        val display = ByteArray(displayWidth * displayHeight) { random.nextInt(256).toByte() }
+        val regionX = 100
+        val regionY = 1700
+        val regionWidth = 880
+        val outputWidth = 114
+
+        // Each output pixel is the average of the display pixels under it, on the display row under the region
+        val reference = ByteArray(outputWidth)
+        val row = regionY / scale
+        for (i in 0 until outputWidth) {
+            val start = ((regionX + cropX).toLong() * outputWidth + i.toLong() * regionWidth) / (scale.toLong() * outputWidth)
+            val end = ((regionX + cropX).toLong() * outputWidth + (i + 1).toLong() * regionWidth) / (scale.toLong() * outputWidth)
+            var sum = 0
+            for (x in start until Math.max(end, start + 1)) {
+                sum += display[(row * displayWidth + x).toInt()].toInt() and 0xFF
+            }
+            reference[i] = (sum / Math.max(end - start, 1)).toByte()
+        }
+
+        val sampler = LumaRegionSampler(viewWidth, viewHeight, regionX, regionY, regionWidth, 1, outputWidth)
+        val sampled = ByteArray(outputWidth)
+        for (rotation in intArrayOf(0, 90, 180, 270)) {
+            sampleTurned(sampler, display, displayWidth, displayHeight, rotation, sampled)
+            assertArrayEquals("rotation $rotation", reference, sampled)
+        }
+    }
+
+    @Test
+    fun sample_mapsTheViewOntoTheCenterOfAFrameWithAnotherAspectRatio() {
+        // A landscape view over the portrait display: the frame is scaled by 4 to fill the view width,
+        // so the 1080 view rows show the 270 display rows from 185 on
+        val landscapeViewWidth = 1920
+        val landscapeViewHeight = 1080
+        val display = ByteArray(displayWidth * displayHeight)
+        for (y in 0 until displayHeight) {
+            for (x in 0 until displayWidth) {
+                display[y * displayWidth + x] = (x + y).toByte()
+            }
+        }
+
+        // Every 4 view pixels of a view row are one display pixel
+        val sampled = ByteArray(displayWidth)
+        for ((viewY, displayY) in arrayOf(0 to 185, 540 to 320, 1079 to 454)) {
+            val sampler = LumaRegionSampler(landscapeViewWidth, landscapeViewHeight, 0, viewY, landscapeViewWidth, 1, displayWidth)
+            val reference = ByteArray(displayWidth) { x -> (x + displayY).toByte() }
+            for (rotation in intArrayOf(0, 90, 180, 270)) {
+                sampleTurned(sampler, display, displayWidth, displayHeight, rotation, sampled)
+                assertArrayEquals("view row $viewY, rotation $rotation", reference, sampled)
+            }
+        }
+    }
+
+    @Test
+    fun sample_reducesABandToTheConfiguredGrid() {
+        val random = Random(51L)
+        val display = ByteArray(displayWidth * displayHeight) { random.nextInt(256).toByte() }
+        // A band of 240 view rows is 80 display rows, reduced to 4 rows of 30 pixels of 12 display columns
+        val regionY = 1500
+        val regionHeight = 240
+        val outputWidth = 30
+        val outputHeight = 4
+
+        for (method in DownsamplingMethod.values()) {
+            // Each output pixel is the average of its block of display pixels, or the pixel in the middle of the block
+            val reference = ByteArray(outputWidth * outputHeight)
+            for (row in 0 until outputHeight) {
+                val top = (regionY.toLong() * outputHeight + row * regionHeight) / (scale.toLong() * outputHeight)
+                val bottom = (regionY.toLong() * outputHeight + (row + 1) * regionHeight) / (scale.toLong() * outputHeight)
+                for (column in 0 until outputWidth) {
+                    // Only the middle 360 display columns are in the view
+                    val left = (column * viewWidth + cropX * outputWidth) / (scale * outputWidth)
+                    val right = ((column + 1) * viewWidth + cropX * outputWidth) / (scale * outputWidth)
+                    var sum = 0
+                    for (y in top until bottom) {
+                        for (x in left until right) {
+                            sum += display[(y * displayWidth + x).toInt()].toInt() and 0xFF
+                        }
+                    }
+                    val middle = ((top + (bottom - top) / 2) * displayWidth + left + (right - left) / 2).toInt()
+                    reference[row * outputWidth + column] = if (method == DownsamplingMethod.STRIDE) display[middle]
+                        else (sum / ((bottom - top) * (right - left))).toByte()
+                }
+            }
+
+            val sampler = LumaRegionSampler(viewWidth, viewHeight, 0, regionY, viewWidth, regionHeight, outputWidth, outputHeight, method)
+            val sampled = ByteArray(outputWidth * outputHeight)
+            sampler.sample(display, displayWidth, displayHeight, 0, sampled)
+            assertArrayEquals(method.toString(), reference, sampled)
+
+            // The frame a phone held upright delivers gives the same pixels
+            sampleTurned(sampler, display, displayWidth, displayHeight, 90, sampled)
+            assertArrayEquals(method.toString(), reference, sampled)
+        }
+    }
+
+    /**
+     * Turns the display image back into the frame the camera would deliver at [rotation], with padded rows and a chroma plane, and samples it.
+     */
+    private fun sampleTurned(sampler: LumaRegionSampler, display: ByteArray, displayWidth: Int, displayHeight: Int,
+                             rotation: Int, sampled: ByteArray) {
+        val isTurned = rotation == 90 || rotation == 270
+        val frameWidth = if (isTurned) displayHeight else displayWidth
+        val frameHeight = if (isTurned) displayWidth else displayHeight
+        val rowStride = frameWidth + 16
+        val frame = ByteArray(rowStride * frameHeight + rowStride * frameHeight / 2)
+        for (y in 0 until frameHeight) {
+            for (x in 0 until frameWidth) {
+                val displayX = when (rotation) { 0 -> x; 90 -> frameHeight - 1 - y; 180 -> frameWidth - 1 - x; else -> y }
+                val displayY = when (rotation) { 0 -> y; 90 -> x; 180 -> frameHeight - 1 - y; else -> frameWidth - 1 - x }
+                frame[y * rowStride + x] = display[displayY * displayWidth + displayX]
+            }
+        }
+
+        sampler.sample(frame, frameWidth, frameHeight, rotation, sampled, rowStride)
+    }
+}
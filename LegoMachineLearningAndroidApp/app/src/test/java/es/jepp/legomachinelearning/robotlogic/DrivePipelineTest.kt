@@ -0,0 +1,108 @@
+package es.jepp.legomachinelearning.robotlogic
+
+import es.jepp.legomachinelearning.imagelogic.FrameBuffer
+import es.jepp.legomachinelearning.imagelogic.FrameBufferPool
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class DrivePipelineTest {
+    @Test
+    fun start_infersNewFramesWhileSteeringAndSteersTheLatest() {
+        val pool = FrameBufferPool(16, 1, 9)
+        val steeringStarted = CountDownLatch(1)
+        val continueSteering = CountDownLatch(1)
+        val steeredAngles = ArrayList<Float>()
+        lateinit var pipeline: DrivePipeline
+        pipeline = DrivePipeline(pool, object : DrivePipeline.Handler {
+            override fun computeSteeringAngle(frame: FrameBuffer): Float {
+                return frame.pixels[0].toFloat()
+            }
+
+            override fun steer(steeringAngle: Float) {
+                synchronized(steeredAngles) { steeredAngles.add(steeringAngle) }
+                // The first frame holds the steering stage until the test lets it go
+                if (steeringAngle == 0f) {
+                    steeringStarted.countDown()
+                    assertTrue(continueSteering.await(10, TimeUnit.SECONDS))
+                }
+            }
+
+            override fun previewReady() {
+                val frame = pipeline.takePreviewFrame() ?: return
+                pipeline.releaseFrame(frame)
+            }
+
+            override fun pipelineFailed(e: Exception) {}
+        })
+        pipeline.start()
+
+        // The camera captures frames numbered 0, 1, 2, ... in the first pixel
+        submitFrame(pipeline, 0)
+        assertTrue(steeringStarted.await(10, TimeUnit.SECONDS))
+
+        // While frame 0 is being steered, the inference stage keeps handling new frames and each replaces the one before
+        for (i in 1..3) {
+            submitFrame(pipeline, i)
+            awaitUntil("frame $i inferred") { pipeline.steeringMailbox.numberOfPostedValues == i + 1L }
+        }
+        assertEquals(2, pipeline.steeringMailbox.numberOfDroppedValues)
+
+        continueSteering.countDown()
+        awaitUntil("frame 3 steered") { synchronized(steeredAngles) { steeredAngles.size == 2 } }
+        pipeline.stop()
+
+        assertNull(pipeline.error)
+        assertEquals(listOf(0f, 3f), steeredAngles)
+        assertEquals(0, pool.getNumberOfBuffersInUse())
+    }
+
+    @Test
+    fun start_keepsTheErrorOfAFailedStageAndReleasesItsFrame() {
+        val pool = FrameBufferPool(16, 1, 9)
+        val failure = Exception("No model")
+        val failed = CountDownLatch(1)
+        val pipeline = DrivePipeline(pool, object : DrivePipeline.Handler {
+            override fun computeSteeringAngle(frame: FrameBuffer): Float {
+                throw failure
+            }
+
+            override fun steer(steeringAngle: Float) {}
+
+            override fun previewReady() {}
+
+            override fun pipelineFailed(e: Exception) {
+                failed.countDown()
+            }
+        })
+        pipeline.start()
+
+        submitFrame(pipeline, 0)
+        assertTrue(failed.await(10, TimeUnit.SECONDS))
+        pipeline.stop()
+
+        assertSame(failure, pipeline.error)
+        assertEquals(0, pool.getNumberOfBuffersInUse())
+    }
+
+    private fun submitFrame(pipeline: DrivePipeline, number: Int) {
+        val frame = pipeline.acquireFrame()!!
+        frame.pixels[0] = number.toByte()
+        pipeline.submitFrame(frame)
+    }
+
+    /**
+     * Waits for another stage's thread to get to a state the test can't be told about directly.
+     */
+    private fun awaitUntil(description: String, condition: () -> Boolean) {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+        while (!condition()) {
+            assertTrue("Timed out waiting for $description", System.nanoTime() < deadline)
+            Thread.sleep(1)
+        }
+    }
+}